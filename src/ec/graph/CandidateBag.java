@@ -0,0 +1,262 @@
+package ec.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Candidate services for graph construction. Each candidate keeps a count
+ * of its inputs that no node of the graph can satisfy yet, and waits on
+ * the concepts of those inputs. When a node is added to the graph, only
+ * the candidates waiting on the concepts it provides are updated, and the
+ * candidates left without missing inputs become ready.
+ *
+ * Ready candidates are kept unordered, so that one can be drawn uniformly
+ * at random and removed in constant time. The lists of waiting candidates
+ * and their counts of missing inputs are kept in open addressing tables
+ * keyed by concept and service ID, so that no boxed keys are created while
+ * the bag is in use. The available concepts are numbered by their input
+ * position, so the storage of a bag, and the cost of copying it, depend on
+ * its candidates rather than on the size of the repository.
+ *
+ * @author sawczualex
+ */
+public class CandidateBag {
+	private GraphInitializer init;
+	private Node[] ready;
+	private int size;
+	// Input concepts that can be satisfied, by input position
+	private BitSet available;
+	private int[] candidateIds;
+	private int[] missingCounts;
+	private int numCandidates;
+	private int[] waitingConcepts;
+	private List<Node>[] waitingNodes;
+	private int numWaiting;
+	private List<List<Node>> spareLists = new ArrayList<List<Node>>();
+
+	public CandidateBag(GraphInitializer init) {
+		this.init = init;
+		ready = new Node[16];
+		available = new BitSet();
+		createCandidateTable(16);
+		createWaitingTable(16);
+	}
+
+	/**
+	 * Creates an independent copy of the given bag.
+	 *
+	 * @param other
+	 */
+	public CandidateBag(CandidateBag other) {
+		init = other.init;
+		ready = Arrays.copyOf(other.ready, Math.max(16, other.size));
+		size = other.size;
+		available = (BitSet) other.available.clone();
+		candidateIds = other.candidateIds.clone();
+		missingCounts = other.missingCounts.clone();
+		numCandidates = other.numCandidates;
+		waitingConcepts = other.waitingConcepts.clone();
+		waitingNodes = other.waitingNodes.clone();
+		numWaiting = other.numWaiting;
+		for (int i = 0; i < waitingNodes.length; i++) {
+			if (waitingNodes[i] != null)
+				waitingNodes[i] = new ArrayList<Node>(waitingNodes[i]);
+		}
+	}
+
+	private void createCandidateTable(int capacity) {
+		candidateIds = new int[capacity];
+		Arrays.fill(candidateIds, -1);
+		missingCounts = new int[capacity];
+		numCandidates = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void createWaitingTable(int capacity) {
+		waitingConcepts = new int[capacity];
+		Arrays.fill(waitingConcepts, -1);
+		waitingNodes = new List[capacity];
+		numWaiting = 0;
+	}
+
+	/**
+	 * @param keys - open addressing table, with -1 marking empty slots
+	 * @param key
+	 * @return position of the key in the table, or of the empty slot where it belongs
+	 */
+	private static int findSlot(int[] keys, int key) {
+		int mask = keys.length - 1;
+		int i = (key * 0x9E3779B9 >>> 16) & mask;
+		while (keys[i] != -1 && keys[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	private int findSlot(int concept) {
+		return findSlot(waitingConcepts, concept);
+	}
+
+	/**
+	 * Records how many inputs of a waiting candidate are still missing.
+	 *
+	 * @param serviceId
+	 * @param count
+	 */
+	private void setMissing(int serviceId, int count) {
+		if (2 * (numCandidates + 1) > candidateIds.length) {
+			int[] oldIds = candidateIds;
+			int[] oldCounts = missingCounts;
+			createCandidateTable(oldIds.length * 2);
+			for (int j = 0; j < oldIds.length; j++) {
+				if (oldIds[j] != -1) {
+					int slot = findSlot(candidateIds, oldIds[j]);
+					candidateIds[slot] = oldIds[j];
+					missingCounts[slot] = oldCounts[j];
+					numCandidates++;
+				}
+			}
+		}
+		int i = findSlot(candidateIds, serviceId);
+		if (candidateIds[i] == -1) {
+			candidateIds[i] = serviceId;
+			numCandidates++;
+		}
+		missingCounts[i] = count;
+	}
+
+	private List<Node> getWaitingList(int concept) {
+		int i = findSlot(concept);
+		if (waitingNodes[i] == null) {
+			if (2 * (numWaiting + 1) > waitingConcepts.length) {
+				int[] oldConcepts = waitingConcepts;
+				List<Node>[] oldNodes = waitingNodes;
+				createWaitingTable(oldConcepts.length * 2);
+				for (int j = 0; j < oldConcepts.length; j++) {
+					if (oldNodes[j] != null) {
+						int slot = findSlot(oldConcepts[j]);
+						waitingConcepts[slot] = oldConcepts[j];
+						waitingNodes[slot] = oldNodes[j];
+						numWaiting++;
+					}
+				}
+				i = findSlot(concept);
+			}
+			waitingConcepts[i] = concept;
+			waitingNodes[i] = spareLists.isEmpty() ? new ArrayList<Node>() : spareLists.remove(spareLists.size() - 1);
+			numWaiting++;
+		}
+		return waitingNodes[i];
+	}
+
+	/**
+	 * Adds a new candidate, which is ready straight away if all of its
+	 * inputs can already be satisfied.
+	 *
+	 * @param n - repository node
+	 */
+	public void add(Node n) {
+		int count = 0;
+		for (int input : n.getInputIds()) {
+			if (!available.get(init.inputPositions[input])) {
+				getWaitingList(input).add(n);
+				count++;
+			}
+		}
+		if (count == 0)
+			addReady(n);
+		else
+			setMissing(n.getServiceId(), count);
+	}
+
+	/**
+	 * Records that the given node can now be connected to, updating the
+	 * candidates waiting on the concepts it provides.
+	 *
+	 * @param n - node added to the graph
+	 */
+	public void provide(Node n) {
+		for (int concept : init.providedConcepts[n.getServiceId()]) {
+			int position = init.inputPositions[concept];
+			// Concepts that are no input of any node are never waited on
+			if (position < 0 || available.get(position))
+				continue;
+			available.set(position);
+			int i = findSlot(concept);
+			List<Node> nodes = waitingNodes[i];
+			if (nodes != null) {
+				// The concept is available from now on, so its slot is not needed again
+				waitingNodes[i] = null;
+				for (int j = 0; j < nodes.size(); j++) {
+					Node candidate = nodes.get(j);
+					if (--missingCounts[findSlot(candidateIds, candidate.getServiceId())] == 0)
+						addReady(candidate);
+				}
+				nodes.clear();
+				spareLists.add(nodes);
+			}
+		}
+	}
+
+	private void addReady(Node n) {
+		if (size == ready.length)
+			ready = Arrays.copyOf(ready, size * 2);
+		ready[size++] = n;
+	}
+
+	/**
+	 * Picks one of the ready candidates at random.
+	 *
+	 * @param random
+	 * @return position of the candidate, or -1 if no candidate is ready
+	 */
+	public int next(Random random) {
+		if (size == 0)
+			return -1;
+		return random.nextInt(size);
+	}
+
+	public Node get(int index) {
+		return ready[index];
+	}
+
+	/**
+	 * Removes the ready candidate at the given position.
+	 *
+	 * @param index
+	 */
+	public void remove(int index) {
+		size--;
+		ready[index] = ready[size];
+		ready[size] = null;
+	}
+
+	/**
+	 * Empties the bag so that it can be reused, keeping its storage.
+	 */
+	public void clear() {
+		Arrays.fill(ready, 0, size, null);
+		size = 0;
+		available.clear();
+		for (int i = 0; i < waitingNodes.length; i++) {
+			if (waitingNodes[i] != null) {
+				waitingNodes[i].clear();
+				spareLists.add(waitingNodes[i]);
+				waitingNodes[i] = null;
+			}
+		}
+		Arrays.fill(waitingConcepts, -1);
+		numWaiting = 0;
+		Arrays.fill(candidateIds, -1);
+		numCandidates = 0;
+	}
+
+	/**
+	 * @return number of ready candidates
+	 */
+	public int size() {
+		return size;
+	}
+}
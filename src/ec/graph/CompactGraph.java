@@ -0,0 +1,310 @@
+package ec.graph;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact representation of a graph individual. Each node is stored as its
+ * service ID plus its section ID, and the edges are stored as int adjacency
+ * arrays in compressed sparse row form, indexed by the position of their
+ * source node. The finish times found by the last evaluation are kept as
+ * well, so that they need not be recalculated after expansion.
+ *
+ * Instances are never modified once created, so they can be shared between
+ * an individual and its clones. The index of the nodes by section, used to
+ * copy sections into offspring, is only built when first needed.
+ *
+ * @author sawczualex
+ */
+public class CompactGraph {
+	private final GraphInitializer init;
+	private final int[] nodes;
+	private final int[] sections;
+	private final double[] finishTimes;
+	private final int[] edgeOffsets;
+	private final int[] edgeTargets;
+	private final int[] intersectOffsets;
+	private final int[] intersects;
+	private volatile SectionIndex sectionIndex;
+
+	/**
+	 * Positions of the nodes grouped by section, and of the edges grouped by
+	 * their target node. Section slot 0 holds the start node, and slot i + 1
+	 * the nodes of section i.
+	 */
+	private static class SectionIndex {
+		final int[] sectionOffsets;
+		final int[] sectionNodes;
+		final int[] inOffsets;
+		final int[] inEdges;
+		final int[] edgeSources;
+
+		SectionIndex(CompactGraph graph, int numSections) {
+			int numNodes = graph.nodes.length;
+			int numEdges = graph.edgeTargets.length;
+
+			sectionOffsets = new int[numSections + 2];
+			for (int i = 0; i < numNodes; i++)
+				sectionOffsets[graph.sections[i] + 2]++;
+			for (int slot = 1; slot < sectionOffsets.length; slot++)
+				sectionOffsets[slot] += sectionOffsets[slot - 1];
+			int[] next = Arrays.copyOf(sectionOffsets, sectionOffsets.length);
+			sectionNodes = new int[numNodes];
+			for (int i = 0; i < numNodes; i++)
+				sectionNodes[next[graph.sections[i] + 1]++] = i;
+
+			edgeSources = new int[numEdges];
+			inOffsets = new int[numNodes + 1];
+			for (int i = 0; i < numNodes; i++) {
+				for (int edge = graph.edgeOffsets[i]; edge < graph.edgeOffsets[i + 1]; edge++) {
+					edgeSources[edge] = i;
+					inOffsets[graph.edgeTargets[edge] + 1]++;
+				}
+			}
+			for (int i = 1; i <= numNodes; i++)
+				inOffsets[i] += inOffsets[i - 1];
+			next = Arrays.copyOf(inOffsets, numNodes);
+			inEdges = new int[numEdges];
+			for (int edge = 0; edge < numEdges; edge++)
+				inEdges[next[graph.edgeTargets[edge]]++] = edge;
+		}
+	}
+
+	/**
+	 * Encodes the nodes and edges of the given graph.
+	 *
+	 * @param graph
+	 * @param init
+	 */
+	public CompactGraph(GraphIndividual graph, GraphInitializer init) {
+		this.init = init;
+		int numNodes = graph.nodeMap.size();
+		nodes = new int[numNodes];
+		sections = new int[numNodes];
+		finishTimes = new double[numNodes];
+
+		Map<String, Integer> positions = new HashMap<String, Integer>();
+		int numEdges = 0;
+		int numIntersects = 0;
+		int i = 0;
+		for (Node node : graph.nodeMap.values()) {
+			nodes[i] = node.getServiceId();
+			sections[i] = node.getSectionId();
+			finishTimes[i] = node.getFinishTime();
+			positions.put(node.getName(), i);
+
+			for (Edge e : node.getOutgoingEdgeList()) {
+				numEdges++;
+				numIntersects += e.getIntersect().length;
+			}
+			i++;
+		}
+
+		edgeOffsets = new int[numNodes + 1];
+		edgeTargets = new int[numEdges];
+		intersectOffsets = new int[numEdges + 1];
+		intersects = new int[numIntersects];
+
+		int edge = 0;
+		int pos = 0;
+		i = 0;
+		for (Node node : graph.nodeMap.values()) {
+			edgeOffsets[i++] = edge;
+			for (Edge e : node.getOutgoingEdgeList()) {
+				int[] intersect = e.getIntersect();
+				edgeTargets[edge] = positions.get(e.getToNode().getName());
+				intersectOffsets[edge] = pos;
+				System.arraycopy(intersect, 0, intersects, pos, intersect.length);
+				pos += intersect.length;
+				edge++;
+			}
+		}
+		edgeOffsets[numNodes] = edge;
+		intersectOffsets[numEdges] = pos;
+	}
+
+	/**
+	 * Recreates the nodes and edges of the encoded graph in the (empty)
+	 * collections of the given individual.
+	 *
+	 * @param graph
+	 */
+	public void expand(GraphIndividual graph) {
+		Node[] expanded = new Node[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			Node node = init.repositoryNodes[nodes[i]].clone();
+			if (node.getKind() == Node.Kind.SERVICE) {
+				node.setSectionId(sections[i]);
+				node.setName(init.getNodeName(nodes[i], sections[i]));
+			}
+			node.setFinishTime(finishTimes[i]);
+			expanded[i] = node;
+			graph.addNode(node);
+		}
+
+		for (int i = 0; i < nodes.length; i++) {
+			Node fromNode = expanded[i];
+			for (int edge = edgeOffsets[i]; edge < edgeOffsets[i + 1]; edge++) {
+				Node toNode = expanded[edgeTargets[edge]];
+				Edge e = new Edge(Arrays.copyOfRange(intersects, intersectOffsets[edge], intersectOffsets[edge + 1]));
+				e.setFromNode(fromNode);
+				e.setToNode(toNode);
+				fromNode.getOutgoingEdgeList().add(e);
+				toNode.getIncomingEdgeList().add(e);
+				graph.addEdge(e);
+			}
+		}
+
+		// Condition nodes take their probabilities from the service that satisfies them
+		for (Node node : expanded) {
+			if (node.getGeneralCondition() != null && !node.getIncomingEdgeList().isEmpty())
+				node.setProbabilities(node.getIncomingEdgeList().get(0).getFromNode().getProbabilities());
+		}
+	}
+
+	private SectionIndex getSectionIndex() {
+		// The index only depends on this graph, so threads racing to build it build the same one
+		SectionIndex index = sectionIndex;
+		if (index == null) {
+			index = new SectionIndex(this, init.suffixList.size());
+			sectionIndex = index;
+		}
+		return index;
+	}
+
+	/**
+	 * Copies the nodes of a section, together with their incoming edges,
+	 * into the given graph. The section is only copied if every node it is
+	 * connected to from outside the section is already in the graph, and
+	 * none of its services is used in another section on its path, as
+	 * construction would ensure. Nothing is copied otherwise.
+	 *
+	 * @param section
+	 * @param graph - expanded graph holding the sections on the path to this one
+	 * @return true if the section was copied
+	 */
+	public boolean copySection(int section, GraphIndividual graph) {
+		SectionIndex index = getSectionIndex();
+		int from = index.sectionOffsets[section + 1];
+		int to = index.sectionOffsets[section + 2];
+		BitSet path = init.sectionPaths[section];
+
+		for (int j = from; j < to; j++) {
+			int i = index.sectionNodes[j];
+			if (init.repositoryNodes[nodes[i]].getKind() == Node.Kind.SERVICE) {
+				for (int other = path.nextSetBit(0); other >= 0; other = path.nextSetBit(other + 1)) {
+					if (other != section && graph.nodeMap.containsKey(init.getNodeName(nodes[i], other)))
+						return false;
+				}
+			}
+			for (int k = index.inOffsets[i]; k < index.inOffsets[i + 1]; k++) {
+				int source = index.edgeSources[index.inEdges[k]];
+				if (sections[source] != section && !graph.nodeMap.containsKey(getName(source)))
+					return false;
+			}
+		}
+
+		Node[] copied = new Node[to - from];
+		for (int j = from; j < to; j++) {
+			int i = index.sectionNodes[j];
+			Node node = init.repositoryNodes[nodes[i]].clone();
+			if (node.getKind() == Node.Kind.SERVICE) {
+				node.setSectionId(section);
+				node.setName(init.getNodeName(nodes[i], section));
+			}
+			copied[j - from] = node;
+			graph.addNode(node);
+		}
+
+		for (int j = from; j < to; j++) {
+			int i = index.sectionNodes[j];
+			Node toNode = copied[j - from];
+			for (int k = index.inOffsets[i]; k < index.inOffsets[i + 1]; k++) {
+				int edge = index.inEdges[k];
+				Node fromNode = graph.nodeMap.get(getName(index.edgeSources[edge]));
+				Edge e = new Edge(Arrays.copyOfRange(intersects, intersectOffsets[edge], intersectOffsets[edge + 1]));
+				e.setFromNode(fromNode);
+				e.setToNode(toNode);
+				fromNode.getOutgoingEdgeList().add(e);
+				toNode.getIncomingEdgeList().add(e);
+				graph.addEdge(e);
+			}
+			// Condition nodes take their probabilities from the service that satisfies them
+			if (toNode.getGeneralCondition() != null && !toNode.getIncomingEdgeList().isEmpty())
+				toNode.setProbabilities(toNode.getIncomingEdgeList().get(0).getFromNode().getProbabilities());
+		}
+		return true;
+	}
+
+	/**
+	 * Records, for each node, the services it is connected to.
+	 *
+	 * @param successors - repository nodes of the services, by service ID of the source node
+	 */
+	public void addSuccessors(Map<Integer, List<Node>> successors) {
+		for (int i = 0; i < nodes.length; i++) {
+			for (int edge = edgeOffsets[i]; edge < edgeOffsets[i + 1]; edge++) {
+				Node to = init.repositoryNodes[nodes[edgeTargets[edge]]];
+				if (to.getKind() == Node.Kind.SERVICE)
+					GraphIndividual.addSuccessor(successors, nodes[i], to);
+			}
+		}
+	}
+
+	/**
+	 * @return number of nodes in the graph
+	 */
+	public int size() {
+		return nodes.length;
+	}
+
+	/**
+	 * @param i - node position
+	 * @return the name the node has in the expanded graph
+	 */
+	public String getName(int i) {
+		Node node = init.repositoryNodes[nodes[i]];
+		if (node.getKind() == Node.Kind.SERVICE)
+			return init.getNodeName(nodes[i], sections[i]);
+		else
+			return node.getName();
+	}
+
+	/**
+	 * Adds the names of all nodes and edges to the given set, in the same
+	 * form as GraphIndividual uses for comparisons.
+	 *
+	 * @param structure
+	 */
+	public void addStructure(Set<String> structure) {
+		for (int i = 0; i < nodes.length; i++) {
+			structure.add(getName(i));
+			for (int edge = edgeOffsets[i]; edge < edgeOffsets[i + 1]; edge++)
+				structure.add(getName(i) + " -> " + getName(edgeTargets[edge]));
+		}
+	}
+
+	/**
+	 * Produces the same description as the expanded individual, without
+	 * expanding it.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("digraph g {");
+		for (int i = 0; i < nodes.length; i++) {
+			for (int edge = edgeOffsets[i]; edge < edgeOffsets[i + 1]; edge++) {
+				builder.append(getName(i));
+				builder.append(" -> ");
+				builder.append(getName(edgeTargets[edge]));
+				builder.append("; ");
+			}
+		}
+		builder.append("}");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package ec.graph;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns the concept and instance names of the taxonomy as dense integer
+ * IDs, so that service inputs, outputs and edge intersections can be
+ * handled as primitive values during graph construction.
+ *
+ * @author sawczualex
+ */
+public class ConceptDictionary {
+	private Map<String, Integer> ids = new HashMap<String, Integer>();
+	private List<String> names = new ArrayList<String>();
+
+	/**
+	 * Returns the ID of the given name, assigning the next free ID
+	 * if the name has not been seen before.
+	 *
+	 * @param name
+	 * @return concept ID
+	 */
+	public int intern(String name) {
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = names.size();
+			ids.put(name, id);
+			names.add(name);
+		}
+		return id;
+	}
+
+	/**
+	 * @param name
+	 * @return concept ID, or -1 if the name is unknown
+	 */
+	public int getId(String name) {
+		Integer id = ids.get(name);
+		return id == null ? -1 : id;
+	}
+
+	public String getName(int id) {
+		return names.get(id);
+	}
+
+	public int size() {
+		return names.size();
+	}
+
+	/**
+	 * Translates a collection of names into an array of IDs.
+	 *
+	 * @param names
+	 * @return IDs in the iteration order of the collection
+	 */
+	public int[] getIds(Collection<String> names) {
+		int[] result = new int[names.size()];
+		int i = 0;
+		for (String n : names)
+			result[i++] = getId(n);
+		return result;
+	}
+}
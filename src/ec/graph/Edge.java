@@ -1,15 +1,23 @@
 package ec.graph;
 
-import java.util.Set;
+import java.util.Arrays;
 
 public class Edge {
+	private static final int[] NO_CONCEPTS = new int[0];
+
 	private Node fromNode;
 	private Node toNode;
-	private Set<String> intersect;
+	private int[] intersect;
+	private int intersectSize;
 	private boolean consider = true;
 
-	public Edge(Set<String> intersect) {
+	public Edge() {
+		this.intersect = NO_CONCEPTS;
+	}
+
+	public Edge(int[] intersect) {
 		this.intersect = intersect;
+		this.intersectSize = intersect.length;
 	}
 
 	public Node getFromNode() {
@@ -28,10 +36,30 @@ public class Edge {
 		this.toNode = toNode;
 	}
 
-	public Set<String> getIntersect() {
+	/**
+	 * @return the IDs of the concepts passed along this edge
+	 */
+	public int[] getIntersect() {
+		if (intersect.length != intersectSize)
+			intersect = Arrays.copyOf(intersect, intersectSize);
 		return intersect;
 	}
 
+	/**
+	 * Adds a concept to the intersect, unless it is already present.
+	 *
+	 * @param concept - concept ID
+	 */
+	public void addIntersect(int concept) {
+		for (int i = 0; i < intersectSize; i++) {
+			if (intersect[i] == concept)
+				return;
+		}
+		if (intersectSize == intersect.length)
+			intersect = Arrays.copyOf(intersect, Math.max(2, intersectSize * 2));
+		intersect[intersectSize++] = concept;
+	}
+
 	public boolean isConsidered() {
 		return consider;
 	}
@@ -50,7 +78,7 @@ public class Edge {
 
 	@Override
 	public int hashCode() {
-		return (fromNode.getName() + toNode.getName()).hashCode();
+		return 31 * fromNode.getName().hashCode() + toNode.getName().hashCode();
 	}
 
 	@Override
@@ -0,0 +1,102 @@
+package ec.graph;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import ec.graph.taskNodes.ConditionNode;
+import ec.graph.taskNodes.TaskNode;
+
+/**
+ * Task tree compiled into flat arrays, so that the QoS of an individual can
+ * be aggregated without walking the tree. For each end node, in the order
+ * of the initializer's end node list, the plan holds the sections on the
+ * path leading to it and the condition branches taken on the way.
+ *
+ * Branches are identified by probability slots: slot 2i + 1 holds the
+ * probability of the specific branch of condition i, and slot 2i that of
+ * the general branch, matching the order of the condition node
+ * probabilities.
+ *
+ * @author sawczualex
+ */
+public class EvaluationPlan {
+	// Names of the condition nodes, by condition index
+	public final String[] condNames;
+	// Sections on the path to each end node, in ascending order
+	public final int[] pathOffsets;
+	public final int[] pathSections;
+	// Branch probability slots on the path to each end node, from the root down
+	public final int[] branchOffsets;
+	public final int[] branchSlots;
+
+	private int numConds;
+	private int[][] pathsBySection;
+	private int[][] slotsBySection;
+
+	/**
+	 * Compiles the task tree of the given initializer.
+	 *
+	 * @param init
+	 */
+	public EvaluationPlan(GraphInitializer init) {
+		int numSections = init.suffixList.size();
+		condNames = new String[init.condNodes.size()];
+		pathsBySection = new int[numSections][];
+		slotsBySection = new int[numSections][];
+		compile(init.taskTree.getChildren().get(0), new BitSet(numSections), new int[0]);
+
+		int numEnds = init.endNodes.size();
+		pathOffsets = new int[numEnds + 1];
+		branchOffsets = new int[numEnds + 1];
+		for (int i = 0; i < numEnds; i++) {
+			int section = init.endNodes.get(i).getSectionId();
+			pathOffsets[i + 1] = pathOffsets[i] + pathsBySection[section].length;
+			branchOffsets[i + 1] = branchOffsets[i] + slotsBySection[section].length;
+		}
+
+		pathSections = new int[pathOffsets[numEnds]];
+		branchSlots = new int[branchOffsets[numEnds]];
+		for (int i = 0; i < numEnds; i++) {
+			int section = init.endNodes.get(i).getSectionId();
+			System.arraycopy(pathsBySection[section], 0, pathSections, pathOffsets[i], pathsBySection[section].length);
+			System.arraycopy(slotsBySection[section], 0, branchSlots, branchOffsets[i], slotsBySection[section].length);
+		}
+		pathsBySection = null;
+		slotsBySection = null;
+	}
+
+	private void compile(TaskNode taskNode, BitSet sections, int[] slots) {
+		int section = taskNode.getCorrespondingNode().getSectionId();
+		BitSet newSections = (BitSet) sections.clone();
+		newSections.set(section);
+
+		if (taskNode instanceof ConditionNode) {
+			ConditionNode condNode = (ConditionNode) taskNode;
+			int cond = numConds++;
+			condNames[cond] = condNode.getCorrespondingNode().getName();
+
+			int[] newSlots = Arrays.copyOf(slots, slots.length + 1);
+			newSlots[slots.length] = 2 * cond + 1;
+			compile(condNode.specificChild, newSections, newSlots);
+
+			newSlots = Arrays.copyOf(slots, slots.length + 1);
+			newSlots[slots.length] = 2 * cond;
+			compile(condNode.generalChild, newSections, newSlots);
+		}
+		else {
+			int[] path = new int[newSections.cardinality()];
+			int j = 0;
+			for (int i = newSections.nextSetBit(0); i >= 0; i = newSections.nextSetBit(i + 1))
+				path[j++] = i;
+			pathsBySection[section] = path;
+			slotsBySection[section] = slots;
+		}
+	}
+
+	/**
+	 * @return number of branch probability slots
+	 */
+	public int numSlots() {
+		return 2 * condNames.length;
+	}
+}
@@ -0,0 +1,66 @@
+package ec.graph;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded cache of the fitness of evaluated compositions, keyed by
+ * their structural fingerprint. When full, the least recently used entry
+ * is evicted. The cache is kept by the initializer, so that it survives
+ * across generations.
+ *
+ * @author sawczualex
+ */
+public class FitnessCache {
+	private final Map<Long, Double> entries;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param capacity - maximum number of cached fitness values
+	 */
+	public FitnessCache(final int capacity) {
+		entries = new LinkedHashMap<Long, Double>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+				if (size() > capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param fingerprint
+	 * @return the cached fitness, or null if the composition is unknown
+	 */
+	public synchronized Double get(long fingerprint) {
+		Double fitness = entries.get(fingerprint);
+		if (fitness == null)
+			misses++;
+		else
+			hits++;
+		return fitness;
+	}
+
+	public synchronized void put(long fingerprint, double fitness) {
+		entries.put(fingerprint, fitness);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+}
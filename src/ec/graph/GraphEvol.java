@@ -1,14 +1,14 @@
 package ec.graph;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import ec.EvolutionState;
 import ec.Individual;
 import ec.Problem;
-import ec.graph.taskNodes.ConditionNode;
-import ec.graph.taskNodes.TaskNode;
 import ec.simple.SimpleFitness;
 import ec.simple.SimpleProblemForm;
 
@@ -31,73 +31,57 @@ public class GraphEvol extends Problem implements SimpleProblemForm {
             state.output.fatal("Whoa!  It's not a GraphIndividual!!!",null);
         GraphIndividual ind2 = (GraphIndividual)ind;
 
+        // Compositions evaluated before need not be expanded or evaluated again
+        Double cached = null;
+        if (init.fitnessCache != null)
+            cached = init.fitnessCache.get(ind2.getFingerprint());
+        if (cached != null) {
+            ((SimpleFitness)ind2.fitness).setFitness(state, cached, false);
+            ind2.evaluated = true;
+            if (((GraphSpecies) ind2.species).compact)
+            	ind2.compact(init);
+            return;
+        }
+        ind2.expand();
+
         double a = 0.0;
         double r = 0.0;
         double t = 0.0;
         double c = 0.0;
 
-        Set<String> serviceNames = new HashSet<String>();
-        Map<String, Set<String>> serviceSuffixMap = new HashMap<String, Set<String>>();
-        Map<String, Double> costBySuffixMap = new HashMap<String, Double>();
-        Map<String, Double> availabilityBySuffixMap = new HashMap<String, Double>();
-        Map<String, Double> reliabilityBySuffixMap = new HashMap<String, Double>();
-
-        for (Node n : ind2.considerableNodeMap.values()) {
-            if (!n.getName().equals("start") && !n.getName().startsWith("cond") && !n.getName().startsWith("end")) {
-                String[] tokens = n.getName().split("_");
-                serviceNames.add(tokens[0]);
-
-                Set<String> services = serviceSuffixMap.get(tokens[tokens.length-1]);
-                if (services == null) {
-                    services = new HashSet<String>();
-                    serviceSuffixMap.put(tokens[tokens.length-1], services);
-                }
-                services.add(tokens[0]);
-            }
+        // Bring the section aggregates up to date
+        int numSections = init.suffixList.size();
+        updateSectionAggregates(ind2, numSections);
+
+        // Probabilities of the condition branches, in the slots of the evaluation plan
+        EvaluationPlan plan = init.evaluationPlan;
+        double[] branchProbs = new double[plan.numSlots()];
+        for (int i = 0; i < plan.condNames.length; i++) {
+            List<Float> condProbs = ind2.nodeMap.get(plan.condNames[i]).getProbabilities();
+            branchProbs[2 * i] = condProbs.get(0);
+            branchProbs[2 * i + 1] = condProbs.get(1);
         }
 
-        for (String suffix : serviceSuffixMap.keySet()) {
+        // Combine the sections leading to each end node, weighted by the probability of reaching it
+        for (int i = 0; i < init.endNodes.size(); i++) {
+            double prob = 1.0;
+            for (int j = plan.branchOffsets[i]; j < plan.branchOffsets[i + 1]; j++)
+                prob *= branchProbs[plan.branchSlots[j]];
+
             double cost = 0.0;
             double availability = 1.0;
             double reliability = 1.0;
-            for (String name : serviceSuffixMap.get(suffix)) {
-                Node node = init.serviceMap.get(name);
-                double[] qos = node.getQos();
-                cost += qos[GraphInitializer.COST];
-                availability *= qos[GraphInitializer.AVAILABILITY];
-                reliability *= qos[GraphInitializer.RELIABILITY];
+            for (int j = plan.pathOffsets[i]; j < plan.pathOffsets[i + 1]; j++) {
+                int section = plan.pathSections[j];
+                cost += ind2.sectionCost[section];
+                availability *= ind2.sectionAvailability[section];
+                reliability *= ind2.sectionReliability[section];
             }
 
-            costBySuffixMap.put(suffix, cost);
-            availabilityBySuffixMap.put(suffix, availability);
-            reliabilityBySuffixMap.put(suffix, reliability);
-        }
-
-        // If an objective of a section has already been fulfilled by earlier sections,
-        // just make sure these maps have "perfect" values for this section
-
-        Map<String, Double> timeByEndMap = new HashMap<String, Double>();
-        Map<String, Double> probByEndMap = new HashMap<String, Double>();
-        Map<String, Double> costByEndMap = new HashMap<String, Double>();
-        Map<String, Double> availabilityByEndMap = new HashMap<String, Double>();
-        Map<String, Double> reliabilityByEndMap = new HashMap<String, Double>();
-
-        for (Node endNode : init.endNodes) {
-            double time = findLongestPath(ind2, endNode.getName(), init);
-            timeByEndMap.put(endNode.getName(), time);
-        }
-
-        // Calculate probabilities by end
-        calculateTreeProbs(init.taskTree.getChildren().get(0), probByEndMap, costByEndMap, availabilityByEndMap, reliabilityByEndMap,
-                costBySuffixMap, availabilityBySuffixMap, reliabilityBySuffixMap, 1.0, new HashSet<String>(), ind2);
-
-
-        for (Node endNode : init.endNodes) {
-            double prob = probByEndMap.get(endNode.getName());
-            double time = timeByEndMap.get(endNode.getName());
-            double cost = costByEndMap.get(endNode.getName());
-            double availability = availabilityByEndMap.get(endNode.getName());
-            double reliability = reliabilityByEndMap.get(endNode.getName());
+            Node graphEnd = ind2.considerableNodeMap.get(init.endNodes.get(i).getName());
+            double time = 0.0;
+            if (graphEnd != null)
+                time = Math.max(0.0, calculateFinishTime(graphEnd));
 
             t += (prob * time);
             c += (prob * cost);
@@ -123,42 +107,12 @@ public class GraphEvol extends Problem implements SimpleProblemForm {
                 ///... is the individual ideal?  Indicate here...
                 false);
 
-        ind2.evaluated = true;
-    }
+        if (init.fitnessCache != null)
+            init.fitnessCache.put(ind2.getFingerprint(), fitness);
 
-    private void calculateTreeProbs(TaskNode taskNode, Map<String, Double> probByEndMap, Map<String, Double> costByEndMap, Map<String, Double> availabilityByEndMap,
-    		Map<String, Double> reliabilityByEndMap, Map<String, Double> costBySuffixMap, Map<String,Double> availabilityBySuffixMap,
-    		Map<String, Double> reliabilityBySuffixMap, Double prob, Set<String> suffixes, GraphIndividual graph) {
-    	Set<String> newSuffixes = new HashSet<String>(suffixes);
-    	newSuffixes.add(taskNode.getCorrespondingNode().getName());
-
-    	if (taskNode instanceof ConditionNode) {
-    		ConditionNode condNode = (ConditionNode) taskNode;
-    		// Recurse on if-child
-    		calculateTreeProbs(condNode.specificChild, probByEndMap, costByEndMap, availabilityByEndMap, reliabilityByEndMap,
-    				costBySuffixMap, availabilityBySuffixMap, reliabilityBySuffixMap, prob * graph.nodeMap.get(condNode.getCorrespondingNode().getName()).getProbabilities().get(1), newSuffixes, graph);
-    		// Recurse on else-child
-    		calculateTreeProbs(condNode.generalChild, probByEndMap, costByEndMap, availabilityByEndMap, reliabilityByEndMap,
-    				costBySuffixMap, availabilityBySuffixMap, reliabilityBySuffixMap, prob * graph.nodeMap.get(condNode.getCorrespondingNode().getName()).getProbabilities().get(0), newSuffixes, graph);
-    	}
-    	else {
-    		probByEndMap.put(taskNode.getCorrespondingNode().getName(), prob);
-    		double cost = 0.0;
-    		double availability = 1.0;
-    		double reliability = 1.0;
-    		for (String suffix : newSuffixes) {
-    			if (costBySuffixMap.get(suffix) != null) {
-    				cost += costBySuffixMap.get(suffix);
-    			}
-    			if (availabilityBySuffixMap.get(suffix) != null)
-    				availability *= availabilityBySuffixMap.get(suffix);
-    			if (reliabilityBySuffixMap.get(suffix) != null)
-    				reliability *= reliabilityBySuffixMap.get(suffix);
-    		}
-    		costByEndMap.put(taskNode.getCorrespondingNode().getName(), cost);
-    		availabilityByEndMap.put(taskNode.getCorrespondingNode().getName(), availability);
-    		reliabilityByEndMap.put(taskNode.getCorrespondingNode().getName(), reliability);
-    	}
+        ind2.evaluated = true;
+        if (((GraphSpecies) ind2.species).compact)
+        	ind2.compact(init);
     }
 
     public void evaluateOwls(final GraphInitializer init, final EvolutionState state, final Individual ind, final int subpopulation, final int threadnum) {
@@ -167,6 +121,7 @@ public class GraphEvol extends Problem implements SimpleProblemForm {
         if (!(ind instanceof GraphIndividual))
             state.output.fatal("Whoa!  It's not a GraphIndividual!!!",null);
         GraphIndividual ind2 = (GraphIndividual)ind;
+        ind2.expand();
 
         // Calculate longest time
         int runPath = findLongestPath2(ind2) - 1;
@@ -184,6 +139,8 @@ public class GraphEvol extends Problem implements SimpleProblemForm {
                 isIdeal);
 
         ind2.evaluated = true;
+        if (((GraphSpecies) ind2.species).compact)
+        	ind2.compact(init);
 	}
 
 
@@ -221,50 +178,93 @@ public class GraphEvol extends Problem implements SimpleProblemForm {
 	}
 
 	/**
-	 * Uses the Bellman-Ford algorithm with negative weights to find the longest
-	 * path in an acyclic directed graph.
+	 * Recalculates the cost, availability and reliability of the sections
+	 * that changed since the individual was last evaluated, leaving the
+	 * aggregates of all other sections as they are.
 	 *
-	 * @param g
-	 * @return list of edges composing longest path
+	 * @param graph
+	 * @param numSections
 	 */
-	private double findLongestPath(GraphIndividual g, String endNodeName, GraphInitializer init) {
-		Map<String, Double> distance = new HashMap<String, Double>();
-		Map<String, Node> predecessor = new HashMap<String, Node>();
-
-		// Step 1: initialize graph
-		for (Node node : g.considerableNodeMap.values()) {
-			if (node.getName().equals("start"))
-				distance.put(node.getName(), 0.0);
-			else
-				distance.put(node.getName(), Double.POSITIVE_INFINITY);
+	private void updateSectionAggregates(GraphIndividual graph, int numSections) {
+		BitSet changed = graph.getChangedSections();
+		if (graph.sectionCost == null) {
+			graph.sectionCost = new double[numSections];
+			graph.sectionAvailability = new double[numSections];
+			graph.sectionReliability = new double[numSections];
+			changed.set(0, numSections);
 		}
+		if (changed.isEmpty())
+			return;
 
-		// Step 2: relax edges repeatedly
-		for (int i = 1; i < g.considerableNodeMap.size(); i++) {
-			for (Edge e : g.considerableEdgeList) {
-				double dist = distance.get(e.getToNode().getName());
-				if ((distance.get(e.getFromNode().getName()) -
-				        e.getToNode().getQos()[GraphInitializer.TIME])
-				        < distance.get(e.getToNode().getName())) {
-					distance.put(e.getToNode().getName(), (distance.get(e.getFromNode().getName()) - e.getToNode().getQos()[GraphInitializer.TIME]));
-					predecessor.put(e.getToNode().getName(), e.getFromNode());
-				}
+		for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+			graph.sectionCost[i] = 0.0;
+			graph.sectionAvailability[i] = 1.0;
+			graph.sectionReliability[i] = 1.0;
+		}
+		for (Node n : graph.considerableNodeMap.values()) {
+			if (n.getKind() == Node.Kind.SERVICE && changed.get(n.getSectionId())) {
+				int section = n.getSectionId();
+				double[] qos = n.getQos();
+				graph.sectionCost[section] += qos[GraphInitializer.COST];
+				graph.sectionAvailability[section] *= qos[GraphInitializer.AVAILABILITY];
+				graph.sectionReliability[section] *= qos[GraphInitializer.RELIABILITY];
 			}
 		}
+		changed.clear();
+	}
 
-		// Now retrieve total cost
-		Node pre = predecessor.get(endNodeName);
-		double totalTime = 0.0;
+	/**
+	 * Finds the longest execution time from the start node to the given node,
+	 * as the latest finish time of its predecessors plus its own time. Finish
+	 * times are kept in the nodes, so only nodes added since the graph was
+	 * last evaluated are calculated. This is valid because the operators only
+	 * ever connect new nodes after existing ones, except for local mutation,
+	 * which clears the finish times of the nodes whose inputs it changes.
+	 * The graph is walked with an explicit stack rather than by recursion, so
+	 * long chains of services cannot overflow the call stack.
+	 *
+	 * @param node
+	 * @return finish time, or negative infinity if the node cannot be reached from the start node
+	 */
+	private double calculateFinishTime(Node node) {
+		if (!Double.isNaN(node.getFinishTime()))
+			return node.getFinishTime();
+
+		// Holds the path of nodes being calculated, each waiting on its predecessors
+		Deque<Node> stack = new ArrayDeque<Node>();
+		// Guards against cycles
+		node.setFinishTime(Double.NEGATIVE_INFINITY);
+		stack.push(node);
+
+		while (!stack.isEmpty()) {
+			Node current = stack.peek();
+			Node pending = null;
+			for (Edge e : current.getIncomingEdgeList()) {
+				if (Double.isNaN(e.getFromNode().getFinishTime())) {
+					pending = e.getFromNode();
+					break;
+				}
+			}
+			if (pending != null) {
+				pending.setFinishTime(Double.NEGATIVE_INFINITY);
+				stack.push(pending);
+				continue;
+			}
 
-		while (pre != null) {
-		    String name = pre.getName();
-		    if (name.startsWith( "serv" )) {
-		        totalTime += pre.getQos()[GraphInitializer.TIME];
-		    }
-			pre = predecessor.get(name);
+			stack.pop();
+			double finish;
+			if (current.getKind() == Node.Kind.START)
+				finish = 0.0;
+			else {
+				finish = Double.NEGATIVE_INFINITY;
+				for (Edge e : current.getIncomingEdgeList())
+					finish = Math.max(finish, e.getFromNode().getFinishTime());
+				if (current.getKind() == Node.Kind.SERVICE)
+					finish += current.getQos()[GraphInitializer.TIME];
+			}
+			current.setFinishTime(finish);
 		}
-
-		return totalTime;
+		return node.getFinishTime();
 	}
 
 	/**
@@ -280,7 +280,7 @@ public class GraphEvol extends Problem implements SimpleProblemForm {
 
 		// Step 1: initialize graph
 		for (Node node : g.considerableNodeMap.values()) {
-			if (node.getName().equals("start"))
+			if (node.getKind() == Node.Kind.START)
 				distance.put(node.getName(), 0);
 			else
 				distance.put(node.getName(), Integer.MAX_VALUE);
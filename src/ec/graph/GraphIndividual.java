@@ -1,7 +1,10 @@
 package ec.graph;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -18,6 +21,14 @@ public class GraphIndividual extends Individual {
 	public List<Edge> considerableEdgeList = new ArrayList<Edge>();
 	public int longestPathLength;
 	public int numAtomicServices;
+	// QoS aggregates of the services of each section, from the last evaluation
+	public double[] sectionCost;
+	public double[] sectionAvailability;
+	public double[] sectionReliability;
+	private BitSet changedSections = new BitSet();
+	private CompactGraph compactGraph;
+	// Order-independent hash of the node and edge sets, kept up to date by the methods below
+	private long fingerprint;
 
 	public GraphIndividual(){
 		super();
@@ -30,21 +41,289 @@ public class GraphIndividual extends Individual {
 		return new Parameter("graphindividual");
 	}
 
+	/**
+	 * Adds a node to the graph, replacing any node with the same name.
+	 *
+	 * @param node
+	 */
+	public void addNode(Node node) {
+		Node old = nodeMap.put(node.getName(), node);
+		considerableNodeMap.put(node.getName(), node);
+		if (old != null)
+			fingerprint -= hash(old);
+		fingerprint += hash(node);
+		if (node.getSectionId() >= 0)
+			changedSections.set(node.getSectionId());
+	}
+
+	/**
+	 * Removes a node from the graph, without touching its edges.
+	 *
+	 * @param node
+	 */
+	public void removeNode(Node node) {
+		Node old = nodeMap.remove(node.getName());
+		considerableNodeMap.remove(node.getName());
+		if (old != null) {
+			fingerprint -= hash(old);
+			if (old.getSectionId() >= 0)
+				changedSections.set(old.getSectionId());
+		}
+	}
+
+	/**
+	 * Adds an edge to the graph. Its from and to nodes must already be set.
+	 *
+	 * @param edge
+	 */
+	public void addEdge(Edge edge) {
+		edgeList.add(edge);
+		considerableEdgeList.add(edge);
+		fingerprint += hash(edge);
+	}
+
+	/**
+	 * Removes one occurrence of an edge from the graph, without touching
+	 * the edge lists of its nodes.
+	 *
+	 * @param edge
+	 * @return true if the edge was part of the graph
+	 */
+	public boolean removeEdge(Edge edge) {
+		considerableEdgeList.remove(edge);
+		if (edgeList.remove(edge)) {
+			fingerprint -= hash(edge);
+			return true;
+		}
+		return false;
+	}
+
+	public long getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return the sections that had nodes added or removed since their
+	 * aggregates were last calculated
+	 */
+	public BitSet getChangedSections() {
+		return changedSections;
+	}
+
+	private static long hash(Node node) {
+		return mix(((long) node.getServiceId() << 32) | (node.getSectionId() & 0xffffffffL));
+	}
+
+	private static long hash(Edge edge) {
+		return mix(hash(edge.getFromNode()) * 31 + hash(edge.getToNode()));
+	}
+
+	/**
+	 * Finalisation step of the SplitMix64 generator, spreading the bits of
+	 * the key over the whole hash.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Replaces the nodes and edges of this individual with its compact
+	 * representation, which is shared with any clones made of it.
+	 *
+	 * @param init
+	 */
+	public void compact(GraphInitializer init) {
+		if (compactGraph == null) {
+			compactGraph = new CompactGraph(this, init);
+			nodeMap = null;
+			considerableNodeMap = null;
+			edgeList = null;
+			considerableEdgeList = null;
+		}
+	}
+
+	/**
+	 * Recreates the nodes and edges of this individual if it is in its
+	 * compact representation, so that they can be modified.
+	 */
+	public void expand() {
+		if (compactGraph != null) {
+			nodeMap = new HashMap<String, Node>();
+			considerableNodeMap = new HashMap<String, Node>();
+			edgeList = new ArrayList<Edge>();
+			considerableEdgeList = new ArrayList<Edge>();
+			fingerprint = 0;
+			// Expanding recreates the same nodes, so no section changes
+			BitSet changed = changedSections;
+			changedSections = new BitSet();
+			compactGraph.expand(this);
+			compactGraph = null;
+			changedSections = changed;
+		}
+	}
+
+	public boolean isCompact() {
+		return compactGraph != null;
+	}
+
+	/**
+	 * @param init
+	 * @return the compact representation of this individual, which is
+	 * created without being kept if the individual is expanded
+	 */
+	public CompactGraph getCompactGraph(GraphInitializer init) {
+		if (compactGraph != null)
+			return compactGraph;
+		return new CompactGraph(this, init);
+	}
+
+	/**
+	 * Records, for each node of this graph, the services it is connected to,
+	 * without expanding the graph if it is compact.
+	 *
+	 * @param successors - repository nodes of the services, by service ID of the source node
+	 * @param init
+	 */
+	public void addSuccessors(Map<Integer, List<Node>> successors, GraphInitializer init) {
+		if (compactGraph != null) {
+			compactGraph.addSuccessors(successors);
+			return;
+		}
+		for (Node node : nodeMap.values()) {
+			for (Edge e : node.getOutgoingEdgeList()) {
+				Node to = e.getToNode();
+				if (to.getKind() == Node.Kind.SERVICE)
+					addSuccessor(successors, node.getServiceId(), init.repositoryNodes[to.getServiceId()]);
+			}
+		}
+	}
+
+	static void addSuccessor(Map<Integer, List<Node>> successors, int serviceId, Node successor) {
+		List<Node> nodes = successors.get(serviceId);
+		if (nodes == null) {
+			nodes = new ArrayList<Node>();
+			successors.put(serviceId, nodes);
+		}
+		nodes.add(successor);
+	}
+
+	/**
+	 * Copies the section aggregates, which are updated in place when the
+	 * clone is evaluated again. A compact graph is shared with the clone,
+	 * but an expanded one is copied node by node, since the operators
+	 * modify the nodes and evaluation records finish times in them.
+	 */
+	@Override
+	public Object clone() {
+		GraphIndividual g = (GraphIndividual) super.clone();
+		if (sectionCost != null) {
+			g.sectionCost = sectionCost.clone();
+			g.sectionAvailability = sectionAvailability.clone();
+			g.sectionReliability = sectionReliability.clone();
+		}
+		g.changedSections = (BitSet) changedSections.clone();
+		if (compactGraph == null)
+			copyGraph(g);
+		return g;
+	}
+
+	/**
+	 * Gives the clone its own copies of the nodes and edges of this graph,
+	 * keeping the order of all collections.
+	 *
+	 * @param g - clone
+	 */
+	private void copyGraph(GraphIndividual g) {
+		Map<Node, Node> nodeCopies = new IdentityHashMap<Node, Node>();
+		Map<Edge, Edge> edgeCopies = new IdentityHashMap<Edge, Edge>();
+
+		g.nodeMap = new HashMap<String, Node>();
+		for (Map.Entry<String, Node> entry : nodeMap.entrySet())
+			g.nodeMap.put(entry.getKey(), copyNode(entry.getValue(), nodeCopies));
+		g.considerableNodeMap = new HashMap<String, Node>();
+		for (Map.Entry<String, Node> entry : considerableNodeMap.entrySet())
+			g.considerableNodeMap.put(entry.getKey(), copyNode(entry.getValue(), nodeCopies));
+
+		g.edgeList = new ArrayList<Edge>(edgeList.size());
+		for (Edge e : edgeList)
+			g.edgeList.add(copyEdge(e, nodeCopies, edgeCopies));
+		g.considerableEdgeList = new ArrayList<Edge>(considerableEdgeList.size());
+		for (Edge e : considerableEdgeList)
+			g.considerableEdgeList.add(copyEdge(e, nodeCopies, edgeCopies));
+
+		for (Node node : nodeMap.values()) {
+			Node copy = nodeCopies.get(node);
+			for (Edge e : node.getIncomingEdgeList())
+				copy.getIncomingEdgeList().add(copyEdge(e, nodeCopies, edgeCopies));
+			for (Edge e : node.getOutgoingEdgeList())
+				copy.getOutgoingEdgeList().add(copyEdge(e, nodeCopies, edgeCopies));
+		}
+	}
+
+	private static Node copyNode(Node node, Map<Node, Node> nodeCopies) {
+		Node copy = nodeCopies.get(node);
+		if (copy == null) {
+			copy = node.clone();
+			copy.setConsidered(node.isConsidered());
+			copy.setFinishTime(node.getFinishTime());
+			nodeCopies.put(node, copy);
+		}
+		return copy;
+	}
+
+	private static Edge copyEdge(Edge edge, Map<Node, Node> nodeCopies, Map<Edge, Edge> edgeCopies) {
+		Edge copy = edgeCopies.get(edge);
+		if (copy == null) {
+			copy = new Edge(edge.getIntersect().clone());
+			copy.setConsidered(edge.isConsidered());
+			copy.setFromNode(copyNode(edge.getFromNode(), nodeCopies));
+			copy.setToNode(copyNode(edge.getToNode(), nodeCopies));
+			edgeCopies.put(edge, copy);
+		}
+		return copy;
+	}
+
+	/**
+	 * Two individuals are equal if they have the same nodes and edges. The
+	 * fingerprints are compared first, so the full comparison is only made
+	 * for individuals that are almost certainly equal.
+	 */
 	@Override
 	public boolean equals(Object other) {
 		if (other instanceof GraphIndividual) {
-			return toString().equals(other.toString());
+			GraphIndividual o = (GraphIndividual) other;
+			return fingerprint == o.fingerprint && getStructure().equals(o.getStructure());
 		}
 		return false;
 	}
 
 	@Override
 	public int hashCode() {
-		return toString().hashCode();
+		return (int) (fingerprint ^ (fingerprint >>> 32));
+	}
+
+	/**
+	 * @return the names of all nodes and edges, in either representation
+	 */
+	private Set<String> getStructure() {
+		Set<String> structure = new HashSet<String>();
+		if (compactGraph != null)
+			compactGraph.addStructure(structure);
+		else {
+			structure.addAll(nodeMap.keySet());
+			for (Edge e : edgeList)
+				structure.add(e.getFromNode().getName() + " -> " + e.getToNode().getName());
+		}
+		return structure;
 	}
 
 	@Override
 	public String toString() {
+		if (compactGraph != null)
+			return compactGraph.toString();
+
 		StringBuilder builder = new StringBuilder();
 		builder.append("digraph g {");
 		for(Edge e: edgeList) {
@@ -1,9 +1,15 @@
 package ec.graph;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -11,10 +17,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -23,11 +37,14 @@ import org.w3c.dom.Text;
 import org.xml.sax.SAXException;
 
 import ec.EvolutionState;
+import ec.Population;
+import ec.Subpopulation;
 import ec.graph.taskNodes.ConditionNode;
 import ec.graph.taskNodes.InputNode;
 import ec.graph.taskNodes.OutputNode;
 import ec.graph.taskNodes.TaskNode;
 import ec.simple.SimpleInitializer;
+import ec.util.MersenneTwisterFast;
 import ec.util.Parameter;
 
 public class GraphInitializer extends SimpleInitializer {
@@ -40,12 +57,30 @@ public class GraphInitializer extends SimpleInitializer {
 	public Map<String, Node> serviceMap = new HashMap<String, Node>();
 	public Set<Node> relevant;
 	public Map<String, TaxonomyNode> taxonomyMap = new HashMap<String, TaxonomyNode>();
+	public ConceptDictionary concepts;
+	public TaxonomyNode[] taxonomyNodes;
 	public TaskNode taskTree;
 	public Node startNode;
 	public List<Node> endNodes = new ArrayList<Node>();
 	public List<Node> condNodes = new ArrayList<Node>();
 	public List<String> suffixList = new ArrayList<String>();
-	public GraphRandom random;
+	public Node[] repositoryNodes;
+	public Node[] sectionNodes;
+	// Concepts whose inputs each repository node can satisfy, in ascending order, by service ID
+	public int[][] providedConcepts;
+	// Position of each concept among those that are inputs of some node, or -1, by concept ID
+	public int[] inputPositions;
+	// Sections on the path from the root of the task tree to each section, and below each section
+	public BitSet[] sectionPaths;
+	public BitSet[] sectionDescendants;
+	// Task tree compiled for evaluation
+	public EvaluationPlan evaluationPlan;
+	// Working collections of the mutation operator, one per thread
+	public MutationScratch[] mutationScratch;
+	private String[][] nodeNames;
+	// One random number generator per thread, wrapping the generators of the evolution state
+	public GraphRandom[] random;
+	public FitnessCache fitnessCache;
 
 	public final double minAvailability = 0;
 	public double maxAvailability = Double.MIN_VALUE;
@@ -62,6 +97,12 @@ public class GraphInitializer extends SimpleInitializer {
 	public boolean overlapEnabled;
 	public boolean runningOwls;
 	public boolean findConcepts;
+	public boolean streamServices;
+	public boolean backwardPruning;
+	public boolean reduceRepository;
+	public boolean parallelInit;
+	// Pool on which the branches of conditions are built, or null if they are built one after the other
+	public ForkJoinPool branchPool;
 	public double overlapPercentage;
 	public int idealPathLength;
 	public int idealNumAtomic;
@@ -84,6 +125,13 @@ public class GraphInitializer extends SimpleInitializer {
 		Parameter idealNumAtomicParam = new Parameter("ideal-num-atomic");
 		Parameter runningOwlsParam = new Parameter("running-owls");
 		Parameter findConceptsParam = new Parameter("find-concepts");
+		Parameter streamServicesParam = new Parameter("stream-services");
+		Parameter snapshotParam = new Parameter("repository-snapshot");
+		Parameter backwardPruningParam = new Parameter("backward-pruning");
+		Parameter reduceRepositoryParam = new Parameter("reduce-repository");
+		Parameter fitnessCacheSizeParam = new Parameter("fitness-cache-size");
+		Parameter parallelInitParam = new Parameter("parallel-init");
+		Parameter parallelBranchesParam = new Parameter("parallel-branches");
 
 		w1 = state.parameters.getDouble(weight1Param, null);
 		w2 = state.parameters.getDouble(weight2Param, null);
@@ -95,14 +143,53 @@ public class GraphInitializer extends SimpleInitializer {
 		idealPathLength = state.parameters.getInt(idealPathLengthParam, null);
 		idealNumAtomic = state.parameters.getInt(idealNumAtomicParam, null);
 		findConcepts = state.parameters.getBoolean( findConceptsParam, null, false );
+		streamServices = state.parameters.getBoolean( streamServicesParam, null, false );
+		backwardPruning = state.parameters.getBoolean( backwardPruningParam, null, false );
+		reduceRepository = state.parameters.getBoolean( reduceRepositoryParam, null, false );
+		parallelInit = state.parameters.getBoolean( parallelInitParam, null, false );
+		if (state.parameters.getBoolean( parallelBranchesParam, null, false ))
+			branchPool = new ForkJoinPool();
+		int fitnessCacheSize = state.parameters.getIntWithDefault( fitnessCacheSizeParam, null, 0 );
+		if (fitnessCacheSize > 0)
+			fitnessCache = new FitnessCache(fitnessCacheSize);
+
+		String servicesFile = state.parameters.getString(servicesParam, null);
+		String taskFile = state.parameters.getString(taskParam, null);
+		String taxonomyFile = state.parameters.getString(taxonomyParam, null);
+
+		// Reuse the parsed repository from an earlier run if the source files are unchanged
+		RepositorySnapshot snapshot = null;
+		Set<String> snapshotRelevant = null;
+		String snapshotFile = state.parameters.getString(snapshotParam, null);
+		if (snapshotFile != null) {
+			try {
+				snapshot = new RepositorySnapshot(new File(snapshotFile), new String[] {servicesFile, taskFile, taxonomyFile}, runningOwls, findConcepts);
+				snapshotRelevant = snapshot.load(this);
+			}
+			catch (IOException e) {
+				System.out.println("Repository snapshot loading failed...");
+				snapshot = null;
+			}
+			if (snapshotRelevant == null) {
+				serviceMap.clear();
+				taxonomyMap.clear();
+			}
+		}
 
-		parseWSCServiceFile(state.parameters.getString(servicesParam, null));
-		parseWSCTaskFile(state.parameters.getString(taskParam, null));
-		parseWSCTaxonomyFile(state.parameters.getString(taxonomyParam, null));
-		if (findConcepts)
-		    findConceptsForInstances();
+		if (snapshotRelevant == null) {
+			if (streamServices)
+				parseWSCServiceFileStreaming(servicesFile);
+			else
+				parseWSCServiceFile(servicesFile);
+			parseWSCTaskFile(taskFile);
+			parseWSCTaxonomyFile(taxonomyFile);
+			if (findConcepts)
+			    findConceptsForInstances();
+		}
 
-		random = new GraphRandom(state.random[0]);
+		random = new GraphRandom[state.random.length];
+		for (int i = 0; i < random.length; i++)
+			random[i] = new GraphRandom(state.random[i]);
 
 		double[] mockQos = new double[4];
 		mockQos[TIME] = 0;
@@ -124,6 +211,7 @@ public class GraphInitializer extends SimpleInitializer {
 		Set<String> outputStrings = new HashSet<String>();
 
 		startNode = new Node("start", "start", mockQos, new HashSet<String>(), outString, probabilities);
+		startNode.setKind(Node.Kind.START);
 		startNode.setTaskNode(taskTree);
 		taskTree.setCorrespondingNode(startNode);
 
@@ -131,6 +219,8 @@ public class GraphInitializer extends SimpleInitializer {
 		for (OutputNode o : outputs) {
 			outputStrings.addAll(o.outputs);
 			Node endNode = new Node("end" + i, "end" + i, mockQos, o.outputs, null, probabilities);
+			endNode.setKind(Node.Kind.END);
+			endNode.setSectionId(suffixList.size());
 			suffixList.add(endNode.getName());
 			endNode.setTaskNode(o);
 			endNodes.add(endNode);
@@ -151,6 +241,8 @@ public class GraphInitializer extends SimpleInitializer {
 			outputPossibilities.add(outsGeneral);
 			outputPossibilities.add(outsSpecific);
 			Node condNode = new Node("cond" + j, "cond" + j, mockQos, c.general, c.specific, outputPossibilities, null, null);
+			condNode.setKind(Node.Kind.CONDITION);
+			condNode.setSectionId(suffixList.size());
 			suffixList.add(condNode.getName());
 			condNode.setTaskNode(c);
 			condNodes.add(condNode);
@@ -162,45 +254,211 @@ public class GraphInitializer extends SimpleInitializer {
 		Set<String> inputStrings = new HashSet<String>();
 		inputStrings.addAll(((InputNode)taskTree).inputs);
 
-		relevant = getRelevantServices(serviceMap, inputStrings, outputStrings);
+		if (snapshotRelevant != null) {
+			relevant = new HashSet<Node>();
+			for (String name : snapshotRelevant)
+				relevant.add(serviceMap.get(name));
+		}
+		else {
+			relevant = getRelevantServices(serviceMap, concepts.getIds(inputStrings), concepts.getIds(outputStrings));
+			if (snapshot != null) {
+				try {
+					snapshot.write(this, relevant);
+				}
+				catch (IOException e) {
+					System.out.println("Repository snapshot writing failed...");
+				}
+			}
+		}
+		if (backwardPruning)
+			relevant = pruneUnproductiveServices(relevant);
+		if (reduceRepository)
+			relevant = reduceRepository(relevant);
 		//calculateNormalisationBounds(relevant);
 		calculateNormalisationBounds(serviceMap.values());
+		indexRepository();
+		freeze();
+		evaluationPlan = new EvaluationPlan(this);
+
+		mutationScratch = new MutationScratch[random.length];
+		for (int thread = 0; thread < mutationScratch.length; thread++)
+			mutationScratch[thread] = new MutationScratch(this);
 	}
 
 	/**
-	 * Checks whether set of inputs can be completely satisfied by the search
-	 * set, making sure to check descendants of input concepts for the subsumption.
-	 *
-	 * @param inputs
-	 * @param searchSet
-	 * @return true if search set subsumed by input set, false otherwise.
+	 * Creates the initial population, constructing the individuals in
+	 * parallel on a fork-join pool if parallel initialisation is enabled.
+	 * Each individual is built with its own random number generator, seeded
+	 * from a base seed drawn from the given thread plus the position of the
+	 * individual, so the population does not depend on the number of cores.
+	 * Subpopulations that retry duplicates or load their individuals from a
+	 * file are populated as usual.
 	 */
-	public boolean isSubsumed(Set<String> inputs, Set<String> searchSet) {
-		boolean satisfied = true;
-		for (String input : inputs) {
-			Set<String> subsumed = taxonomyMap.get(input).getSubsumedConcepts();
-			if (!isIntersection( searchSet, subsumed )) {
-				satisfied = false;
-				break;
+	@Override
+	public Population initialPopulation(final EvolutionState state, int thread) {
+		if (!parallelInit)
+			return super.initialPopulation(state, thread);
+
+		Population p = setupPopulation(state, thread);
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			for (Subpopulation subpop : p.subpops) {
+				// Retrying duplicates depends on the individuals created before, so it is done serially,
+				// and individuals loaded from a file are left to the subpopulation
+				if (subpop.numDuplicateRetries > 0 || subpop.loadInds != null) {
+					subpop.populate(state, thread);
+					continue;
+				}
+
+				final GraphSpecies species = (GraphSpecies) subpop.species;
+				final long seed = state.random[thread].nextLong();
+				List<Callable<GraphIndividual>> tasks = new ArrayList<Callable<GraphIndividual>>();
+				for (int i = 0; i < subpop.individuals.length; i++) {
+					final int index = i;
+					tasks.add(new Callable<GraphIndividual>() {
+						@Override
+						public GraphIndividual call() {
+							GraphRandom random = new GraphRandom(new MersenneTwisterFast(seed + index));
+							return species.createNewBranchedGraph(state, taskTree, null, random);
+						}
+					});
+				}
+
+				List<Future<GraphIndividual>> results = pool.invokeAll(tasks);
+				for (int i = 0; i < subpop.individuals.length; i++)
+					subpop.individuals[i] = results.get(i).get();
 			}
 		}
-		return satisfied;
+		catch (InterruptedException e) {
+			state.output.fatal("Initial population construction was interrupted.");
+		}
+		catch (ExecutionException e) {
+			state.output.fatal("Initial population construction failed: " + e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+		return p;
 	}
 
-    private static boolean isIntersection( Set<String> a, Set<String> b ) {
-        for ( String v1 : a ) {
-            if ( b.contains( v1 ) ) {
-                return true;
-            }
-        }
-        return false;
-    }
+	/**
+	 * Numbers the services and task nodes, so that graphs can refer to them
+	 * by index, lists the end and condition nodes by section, and records the
+	 * concepts each node provides and how the sections are nested.
+	 */
+	private void indexRepository() {
+		List<Node> nodes = new ArrayList<Node>(serviceMap.values());
+		nodes.add(startNode);
+		nodes.addAll(endNodes);
+		nodes.addAll(condNodes);
+		repositoryNodes = nodes.toArray(new Node[nodes.size()]);
+		for (int i = 0; i < repositoryNodes.length; i++)
+			repositoryNodes[i].setServiceId(i);
+
+		int[] counts = new int[repositoryNodes.length];
+		for (TaxonomyNode t : taxonomyNodes) {
+			for (Node s : t.servicesWithOutput)
+				counts[s.getServiceId()]++;
+		}
+		providedConcepts = new int[repositoryNodes.length][];
+		for (int i = 0; i < repositoryNodes.length; i++)
+			providedConcepts[i] = new int[counts[i]];
+		Arrays.fill(counts, 0);
+		for (TaxonomyNode t : taxonomyNodes) {
+			for (Node s : t.servicesWithOutput)
+				providedConcepts[s.getServiceId()][counts[s.getServiceId()]++] = t.id;
+		}
+
+		inputPositions = new int[taxonomyNodes.length];
+		Arrays.fill(inputPositions, -1);
+		int numInputs = 0;
+		for (Node n : repositoryNodes) {
+			if (n.getInputIds() != null) {
+				for (int input : n.getInputIds()) {
+					if (inputPositions[input] < 0)
+						inputPositions[input] = numInputs++;
+				}
+			}
+		}
+
+		sectionNodes = new Node[suffixList.size()];
+		for (Node n : endNodes)
+			sectionNodes[n.getSectionId()] = n;
+		for (Node n : condNodes)
+			sectionNodes[n.getSectionId()] = n;
+
+		sectionPaths = new BitSet[suffixList.size()];
+		sectionDescendants = new BitSet[suffixList.size()];
+		for (int i = 0; i < sectionNodes.length; i++) {
+			BitSet path = new BitSet(suffixList.size());
+			for (TaskNode t = sectionNodes[i].getTaskNode(); t != null; t = t.getParent()) {
+				int section = t.getCorrespondingNode().getSectionId();
+				if (section >= 0)
+					path.set(section);
+			}
+			sectionPaths[i] = path;
+
+			BitSet descendants = new BitSet(suffixList.size());
+			Queue<TaskNode> queue = new LinkedList<TaskNode>();
+			if (sectionNodes[i].getTaskNode().getChildren() != null)
+				queue.addAll(sectionNodes[i].getTaskNode().getChildren());
+			while (!queue.isEmpty()) {
+				TaskNode current = queue.poll();
+				descendants.set(current.getCorrespondingNode().getSectionId());
+				if (current.getChildren() != null)
+					queue.addAll(current.getChildren());
+			}
+			sectionDescendants[i] = descendants;
+		}
+
+		// Only relevant services are ever added to graphs, so only their names are needed
+		nodeNames = new String[repositoryNodes.length][];
+		for (Node n : relevant) {
+			String[] names = new String[suffixList.size()];
+			for (int i = 0; i < names.length; i++)
+				names[i] = n.getBaseName() + "_" + suffixList.get(i);
+			nodeNames[n.getServiceId()] = names;
+		}
+	}
+
+	/**
+	 * Makes the repository, task and taxonomy collections read-only once
+	 * setup is complete. Evaluation and breeding threads then share them
+	 * without any locking, and any attempt to modify them fails fast.
+	 */
+	private void freeze() {
+		serviceMap = Collections.unmodifiableMap(serviceMap);
+		taxonomyMap = Collections.unmodifiableMap(taxonomyMap);
+		relevant = Collections.unmodifiableSet(relevant);
+		endNodes = Collections.unmodifiableList(endNodes);
+		condNodes = Collections.unmodifiableList(condNodes);
+		suffixList = Collections.unmodifiableList(suffixList);
+		for (TaxonomyNode t : taxonomyNodes)
+			t.freeze();
+	}
+
+	/**
+	 * Returns the name of a service node added to a graph for the given task
+	 * section.
+	 *
+	 * @param serviceId
+	 * @param sectionId
+	 * @return node name
+	 */
+	public String getNodeName(int serviceId, int sectionId) {
+		String[] names = nodeNames[serviceId];
+		if (names == null)
+			return repositoryNodes[serviceId].getBaseName() + "_" + suffixList.get(sectionId);
+		return names[sectionId];
+	}
 
 	/**
 	 * Populates the taxonomy tree by associating services to the
 	 * nodes in the tree.
 	 */
 	private void populateTaxonomyTree() {
+		buildConceptDictionary();
+
 		for (Node s: serviceMap.values()) {
 			addServiceToTaxonomyTree(s);
 		}
@@ -211,13 +469,34 @@ public class GraphInitializer extends SimpleInitializer {
 		addConditionNodesToTaxonomyTree();
 	}
 
+	/**
+	 * Assigns a dense ID to every taxonomy value, and translates the
+	 * inputs and outputs of all services and task nodes into these IDs.
+	 */
+	private void buildConceptDictionary() {
+		concepts = new ConceptDictionary();
+		taxonomyNodes = new TaxonomyNode[taxonomyMap.size()];
+		for (TaxonomyNode n : taxonomyMap.values()) {
+			n.id = concepts.intern(n.value);
+			taxonomyNodes[n.id] = n;
+		}
+
+		for (Node s : serviceMap.values())
+			s.resolveConcepts(concepts);
+		startNode.resolveConcepts(concepts);
+		for (Node endNode : endNodes)
+			endNode.resolveConcepts(concepts);
+		for (Node condNode : condNodes)
+			condNode.resolveConcepts(concepts);
+	}
+
 	private void addServiceToTaxonomyTree(Node s) {
 		// Populate outputs
 	    Set<TaxonomyNode> seenConceptsOutput = new HashSet<TaxonomyNode>();
 
 	    // The general output possibilities come first by convention
-		for (String outputVal : s.getOutputPossibilities().get(0)) {
-			TaxonomyNode n = taxonomyMap.get(outputVal);
+		for (int outputVal : s.getOutputIds()[0]) {
+			TaxonomyNode n = taxonomyNodes[outputVal];
 //			n.servicesWithOutput.add(s);
 			s.getTaxonomyOutputs().add(n);
 
@@ -240,8 +519,8 @@ public class GraphInitializer extends SimpleInitializer {
 
 		// Populate inputs
 		Set<TaxonomyNode> seenConceptsInput = new HashSet<TaxonomyNode>();
-		for (String inputVal : s.getInputs()) {
-			TaxonomyNode n = taxonomyMap.get(inputVal);
+		for (int inputVal : s.getInputIds()) {
+			TaxonomyNode n = taxonomyNodes[inputVal];
 			//n.servicesWithInput.add(s);
 
 			// Also add input to all children nodes
@@ -265,14 +544,9 @@ public class GraphInitializer extends SimpleInitializer {
 
 	private void addEndNodesToTaxonomyTree() {
 		for (Node endNode : endNodes) {
-			for (String inputVal : endNode.getInputs()) {
-				TaxonomyNode n = taxonomyMap.get(inputVal);
-				Set<String> inputs = n.endNodeInputs.get(endNode.getName());
-				if (inputs == null) {
-					inputs = new HashSet<String>();
-					n.endNodeInputs.put(endNode.getName(), inputs);
-				}
-				inputs.add(inputVal);
+			for (int inputVal : endNode.getInputIds()) {
+				TaxonomyNode n = taxonomyNodes[inputVal];
+				TaxonomyNode.addGoalInput(n.endNodeInputs, endNode.getName(), inputVal);
 
 				// Also add input to all children nodes
 				Queue<TaxonomyNode> queue = new LinkedList<TaxonomyNode>();
@@ -280,12 +554,7 @@ public class GraphInitializer extends SimpleInitializer {
 
 				while(!queue.isEmpty()) {
 					TaxonomyNode current = queue.poll();
-					Set<String> ins = current.endNodeInputs.get(endNode.getName());
-					if (ins == null) {
-						ins = new HashSet<String>();
-						current.endNodeInputs.put(endNode.getName(), ins);
-					}
-					ins.add(inputVal);
+					TaxonomyNode.addGoalInput(current.endNodeInputs, endNode.getName(), inputVal);
 					queue.addAll(current.children);
 				}
 			}
@@ -297,14 +566,10 @@ public class GraphInitializer extends SimpleInitializer {
 
 		for (Node condNode : condNodes) {
 			// General value
-			TaxonomyNode n = taxonomyMap.get(condNode.getGeneralCondition());
+			int general = condNode.getGeneralConditionId();
+			TaxonomyNode n = taxonomyNodes[general];
 			condNode.getGeneralTaxonomyOutputs().add(n);
-			Set<String> inputs = n.condNodeGeneralInputs.get(condNode.getName());
-			if (inputs == null) {
-				inputs = new HashSet<String>();
-				n.condNodeGeneralInputs.put(condNode.getName(), inputs);
-			}
-			inputs.add(condNode.getGeneralCondition());
+			TaxonomyNode.addGoalInput(n.condNodeGeneralInputs, condNode.getName(), general);
 
 			// Also add input to all children nodes
 			Queue<TaxonomyNode> queue = new LinkedList<TaxonomyNode>();
@@ -312,24 +577,15 @@ public class GraphInitializer extends SimpleInitializer {
 
 			while (!queue.isEmpty()) {
 				TaxonomyNode current = queue.poll();
-				Set<String> ins = current.condNodeGeneralInputs.get(condNode.getName());
-				if (ins == null) {
-					ins = new HashSet<String>();
-					current.condNodeGeneralInputs.put(condNode.getName(), ins);
-				}
-				ins.add(condNode.getGeneralCondition());
+				TaxonomyNode.addGoalInput(current.condNodeGeneralInputs, condNode.getName(), general);
 				queue.addAll(current.children);
 			}
 
 			// Specific value
-			n = taxonomyMap.get(condNode.getSpecificCondition());
+			int specific = condNode.getSpecificConditionId();
+			n = taxonomyNodes[specific];
 			condNode.getSpecificTaxonomyOutputs().add(n);
-			inputs = n.condNodeSpecificInputs.get(condNode.getName());
-			if (inputs == null) {
-				inputs = new HashSet<String>();
-				n.condNodeSpecificInputs.put(condNode.getName(), inputs);
-			}
-			inputs.add(condNode.getSpecificCondition());
+			TaxonomyNode.addGoalInput(n.condNodeSpecificInputs, condNode.getName(), specific);
 
 			// Also add input to all children nodes
 			queue = new LinkedList<TaxonomyNode>();
@@ -337,12 +593,7 @@ public class GraphInitializer extends SimpleInitializer {
 
 			while (!queue.isEmpty()) {
 				TaxonomyNode current = queue.poll();
-				Set<String> ins = current.condNodeSpecificInputs.get(condNode.getName());
-				if (ins == null) {
-					ins = new HashSet<String>();
-					current.condNodeSpecificInputs.put(condNode.getName(), ins);
-				}
-				ins.add(condNode.getSpecificCondition());
+				TaxonomyNode.addGoalInput(current.condNodeSpecificInputs, condNode.getName(), specific);
 				queue.addAll(current.children);
 			}
 
@@ -421,7 +672,7 @@ public class GraphInitializer extends SimpleInitializer {
 	public void removeDanglingNodes(GraphIndividual graph) {
 	    List<Node> dangling = new ArrayList<Node>();
 	    for (Node g : graph.nodeMap.values()) {
-	        if (!g.getName().startsWith("end") && !g.getName().startsWith("cond") && g.getOutgoingEdgeList().isEmpty())
+	        if (g.getKind() != Node.Kind.END && g.getKind() != Node.Kind.CONDITION && g.getOutgoingEdgeList().isEmpty())
 	            dangling.add( g );
 	    }
 
@@ -432,13 +683,11 @@ public class GraphInitializer extends SimpleInitializer {
 
 	private void removeDangling(Node n, GraphIndividual graph) {
 	    if (n.getOutgoingEdgeList().isEmpty()) {
-	        graph.nodeMap.remove( n.getName() );
-	        graph.considerableNodeMap.remove( n.getName() );
+	        graph.removeNode(n);
 	        for (Edge e : n.getIncomingEdgeList()) {
 	        	removeAllOccurrences(e.getFromNode().getOutgoingEdgeList(), e);
-	        	removeAllOccurrences(graph.edgeList, e);
-	        	removeAllOccurrences(graph.considerableEdgeList, e);
-	        	if (!e.getFromNode().getName().startsWith("cond"))
+	        	while (graph.removeEdge(e)) {}
+	        	if (e.getFromNode().getKind() != Node.Kind.CONDITION)
 	        		removeDangling(e.getFromNode(), graph);
 	        }
 	    }
@@ -453,29 +702,72 @@ public class GraphInitializer extends SimpleInitializer {
 	 * Goes through the service list and retrieves only those services which
 	 * could be part of the composition task requested by the user.
 	 *
+	 * This is done by forward chaining from the task inputs: each service keeps
+	 * a count of its inputs that are not yet satisfied, and each concept keeps
+	 * the list of services waiting on it. Whenever a concept becomes available,
+	 * it and all of its ancestors are marked as satisfied, and the counters of
+	 * the waiting services are decremented. Services reaching zero are relevant
+	 * and make their own outputs available in turn, so every service and every
+	 * concept is processed only once.
+	 *
 	 * @param serviceMap
+	 * @param inputs - task input concept IDs
+	 * @param outputs - task output concept IDs
 	 * @return relevant services
 	 */
-	private Set<Node> getRelevantServices(Map<String,Node> serviceMap, Set<String> inputs, Set<String> outputs) {
-		// Copy service map values to retain original
-		Collection<Node> services = new ArrayList<Node>(serviceMap.values());
+	private Set<Node> getRelevantServices(Map<String,Node> serviceMap, int[] inputs, int[] outputs) {
+		Node[] services = serviceMap.values().toArray(new Node[serviceMap.size()]);
+		int numConcepts = taxonomyNodes.length;
+
+		// Build inverted index from input concepts to the services waiting on them
+		int[] unsatisfied = new int[services.length];
+		int[] waitingOffsets = new int[numConcepts + 1];
+		for (Node s : services) {
+			for (int i : s.getInputIds())
+				waitingOffsets[i + 1]++;
+		}
+		for (int c = 0; c < numConcepts; c++)
+			waitingOffsets[c + 1] += waitingOffsets[c];
+		int[] waiting = new int[waitingOffsets[numConcepts]];
+		int[] fill = Arrays.copyOf(waitingOffsets, numConcepts);
+		for (int j = 0; j < services.length; j++) {
+			int[] serviceInputs = services[j].getInputIds();
+			unsatisfied[j] = serviceInputs.length;
+			for (int i : serviceInputs)
+				waiting[fill[i]++] = j;
+		}
 
-		Set<String> cSearch = new HashSet<String>(inputs);
 		Set<Node> sSet = new HashSet<Node>();
-		Set<Node> sFound = discoverService(services, cSearch);
-		while (!sFound.isEmpty()) {
-			sSet.addAll(sFound);
-			services.removeAll(sFound);
-			for (Node s: sFound) {
-				for (List<String> outPoss : s.getOutputPossibilities()) {
-					cSearch.addAll(outPoss);
-				}
+		boolean[] satisfied = new boolean[numConcepts];
+		int[] queue = new int[numConcepts];
+		int head = 0;
+		int tail = 0;
+
+		for (int j = 0; j < services.length; j++) {
+			if (unsatisfied[j] == 0)
+				tail = addRelevantService(services[j], sSet, satisfied, queue, tail);
+		}
+		for (int i : inputs)
+			tail = markSatisfied(i, satisfied, queue, tail);
+
+		while (head < tail) {
+			int concept = queue[head++];
+			for (int w = waitingOffsets[concept]; w < waitingOffsets[concept + 1]; w++) {
+				int j = waiting[w];
+				if (--unsatisfied[j] == 0)
+					tail = addRelevantService(services[j], sSet, satisfied, queue, tail);
 			}
-			sFound.clear();
-			sFound = discoverService(services, cSearch);
 		}
 
-		if (isSubsumed(outputs, cSearch)) {
+		boolean goalsSatisfied = true;
+		for (int o : outputs) {
+			if (!satisfied[o]) {
+				goalsSatisfied = false;
+				break;
+			}
+		}
+
+		if (goalsSatisfied) {
 			return sSet;
 		}
 		else {
@@ -486,6 +778,200 @@ public class GraphInitializer extends SimpleInitializer {
 		}
 	}
 
+	private int addRelevantService(Node s, Set<Node> sSet, boolean[] satisfied, int[] queue, int tail) {
+		sSet.add(s);
+		for (int[] outPoss : s.getOutputIds()) {
+			for (int o : outPoss)
+				tail = markSatisfied(o, satisfied, queue, tail);
+		}
+		return tail;
+	}
+
+	/**
+	 * Marks the concept and all of its ancestors as satisfied, queueing those
+	 * that were not satisfied before. Ancestors of a satisfied concept are
+	 * always satisfied, so the walk stops at concepts already marked.
+	 */
+	private int markSatisfied(int concept, boolean[] satisfied, int[] queue, int tail) {
+		if (satisfied[concept])
+			return tail;
+		satisfied[concept] = true;
+		queue[tail++] = concept;
+
+		int head = tail - 1;
+		while (head < tail) {
+			for (TaxonomyNode parent : taxonomyNodes[queue[head++]].parents) {
+				if (!satisfied[parent.id]) {
+					satisfied[parent.id] = true;
+					queue[tail++] = parent.id;
+				}
+			}
+		}
+		return tail;
+	}
+
+	/**
+	 * Retains only those relevant services that lie on some path from the
+	 * task inputs to a goal, by chaining backwards from the inputs of the end
+	 * nodes and the concepts of the condition nodes.
+	 *
+	 * A concept is needed if it is a goal input or an input of a retained
+	 * service. Any concept subsumed by a needed concept can satisfy it, so
+	 * the services producing such a concept are retained, and their inputs
+	 * become needed in turn. Each concept is visited at most once.
+	 *
+	 * @param relevant - services reachable from the task inputs
+	 * @return services that can also contribute to a goal
+	 */
+	private Set<Node> pruneUnproductiveServices(Set<Node> relevant) {
+		Node[] services = relevant.toArray(new Node[relevant.size()]);
+		int numConcepts = taxonomyNodes.length;
+
+		// Build index from output concepts to the services producing them
+		int[] producerOffsets = new int[numConcepts + 1];
+		for (Node s : services) {
+			for (int[] outPoss : s.getOutputIds()) {
+				for (int o : outPoss)
+					producerOffsets[o + 1]++;
+			}
+		}
+		for (int c = 0; c < numConcepts; c++)
+			producerOffsets[c + 1] += producerOffsets[c];
+		int[] producers = new int[producerOffsets[numConcepts]];
+		int[] fill = Arrays.copyOf(producerOffsets, numConcepts);
+		for (int j = 0; j < services.length; j++) {
+			for (int[] outPoss : services[j].getOutputIds()) {
+				for (int o : outPoss)
+					producers[fill[o]++] = j;
+			}
+		}
+
+		boolean[] useful = new boolean[services.length];
+		boolean[] covered = new boolean[numConcepts];
+		int[] queue = new int[numConcepts];
+		int tail = 0;
+
+		for (Node endNode : endNodes)
+			tail = markNeeded(endNode.getInputIds(), covered, queue, tail);
+		for (Node condNode : condNodes)
+			tail = markNeeded(new int[] {condNode.getGeneralConditionId(), condNode.getSpecificConditionId()}, covered, queue, tail);
+
+		for (int head = 0; head < tail; head++) {
+			int concept = queue[head];
+			for (int p = producerOffsets[concept]; p < producerOffsets[concept + 1]; p++) {
+				int j = producers[p];
+				if (!useful[j]) {
+					useful[j] = true;
+					tail = markNeeded(services[j].getInputIds(), covered, queue, tail);
+				}
+			}
+		}
+
+		Set<Node> productive = new HashSet<Node>();
+		for (int j = 0; j < services.length; j++) {
+			if (useful[j])
+				productive.add(services[j]);
+		}
+		return productive;
+	}
+
+	/**
+	 * Marks the given concepts and all of their descendants as covered,
+	 * queueing those that were not covered before.
+	 */
+	private int markNeeded(int[] needed, boolean[] covered, int[] queue, int tail) {
+		for (int concept : needed) {
+			if (covered[concept])
+				continue;
+			covered[concept] = true;
+			queue[tail++] = concept;
+
+			int head = tail - 1;
+			while (head < tail) {
+				for (TaxonomyNode child : taxonomyNodes[queue[head++]].children) {
+					if (!covered[child.id]) {
+						covered[child.id] = true;
+						queue[tail++] = child.id;
+					}
+				}
+			}
+		}
+		return tail;
+	}
+
+	/**
+	 * Groups the relevant services into classes with identical inputs,
+	 * output possibilities and probabilities, and removes from each class
+	 * the services that are dominated on all four QoS attributes by another
+	 * service of the same class. Services with identical QoS are represented
+	 * by a single one. Any composition using a removed service can use the
+	 * dominating one instead without losing fitness.
+	 *
+	 * @param relevant
+	 * @return the non-dominated services
+	 */
+	private Set<Node> reduceRepository(Set<Node> relevant) {
+		Map<String, List<Node>> classes = new HashMap<String, List<Node>>();
+		for (Node s : relevant) {
+			String key = interfaceKey(s);
+			List<Node> members = classes.get(key);
+			if (members == null) {
+				members = new ArrayList<Node>();
+				classes.put(key, members);
+			}
+			members.add(s);
+		}
+
+		Set<Node> reduced = new HashSet<Node>();
+		for (List<Node> members : classes.values()) {
+			for (Node s : members) {
+				boolean dominated = false;
+				for (Node other : members) {
+					if (other != s && dominates(other, s)) {
+						dominated = true;
+						break;
+					}
+				}
+				if (!dominated)
+					reduced.add(s);
+			}
+		}
+
+		System.out.println(String.format("Repository reduction: %d services in %d interface classes, %d retained (%.1f%%)",
+				relevant.size(), classes.size(), reduced.size(), 100.0 * reduced.size() / relevant.size()));
+		return reduced;
+	}
+
+	private String interfaceKey(Node s) {
+		StringBuilder key = new StringBuilder();
+		int[] inputs = s.getInputIds().clone();
+		Arrays.sort(inputs);
+		key.append(Arrays.toString(inputs));
+		for (int i = 0; i < s.getOutputIds().length; i++) {
+			int[] outputs = s.getOutputIds()[i].clone();
+			Arrays.sort(outputs);
+			key.append('|').append(s.getProbabilities().get(i)).append(Arrays.toString(outputs));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Checks whether service a is at least as good as service b on every QoS
+	 * attribute, and either strictly better on one or, if the QoS are equal,
+	 * the canonical representative of the two (so that exactly one is kept).
+	 */
+	private boolean dominates(Node a, Node b) {
+		double[] qa = a.getQos();
+		double[] qb = b.getQos();
+		if (qa[TIME] > qb[TIME] || qa[COST] > qb[COST] ||
+				qa[AVAILABILITY] < qb[AVAILABILITY] || qa[RELIABILITY] < qb[RELIABILITY])
+			return false;
+		if (qa[TIME] < qb[TIME] || qa[COST] < qb[COST] ||
+				qa[AVAILABILITY] > qb[AVAILABILITY] || qa[RELIABILITY] > qb[RELIABILITY])
+			return true;
+		return a.getName().compareTo(b.getName()) < 0;
+	}
+
 	private void calculateNormalisationBounds(Collection<Node> services) {
 		for(Node service: services) {
 			double[] qos = service.getQos();
@@ -520,25 +1006,6 @@ public class GraphInitializer extends SimpleInitializer {
 
 	}
 
-	/**
-	 * Discovers all services from the provided collection whose
-	 * input can be satisfied either (a) by the input provided in
-	 * searchSet or (b) by the output of services whose input is
-	 * satisfied by searchSet (or a combination of (a) and (b)).
-	 *
-	 * @param services
-	 * @param searchSet
-	 * @return set of discovered services
-	 */
-	private Set<Node> discoverService(Collection<Node> services, Set<String> searchSet) {
-		Set<Node> found = new HashSet<Node>();
-		for (Node s: services) {
-			if (isSubsumed(s.getInputs(), searchSet))
-				found.add(s);
-		}
-		return found;
-	}
-
 	/**
 	 * Parses the WSC Web service file with the given name, creating Web
 	 * services based on this information and saving them to the service map.
@@ -632,6 +1099,114 @@ public class GraphInitializer extends SimpleInitializer {
 		}
     }
 
+	/**
+	 * Streaming alternative to parseWSCServiceFile. Reads the WSC Web service
+	 * file in a single forward pass with a pull parser, creating the services
+	 * and updating the QoS bounds as each service element closes, so that no
+	 * document tree is held in memory.
+	 *
+	 * @param fileName
+	 */
+	private void parseWSCServiceFileStreaming(String fileName) {
+		Set<String> inputs = new HashSet<String>();
+		List<List<String>> outputPossibilities = new ArrayList<List<String>>();
+		List<Float> probabilities = new ArrayList<Float>();
+		List<String> outputs = null;
+		double[] qos = new double[4];
+		String name = null;
+		boolean inInputs = false;
+
+		InputStream in = null;
+		XMLStreamReader reader = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(fileName));
+			reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+
+			while (reader.hasNext()) {
+				int event = reader.next();
+
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String tag = reader.getLocalName();
+
+					if (tag.equals("service")) {
+						name = reader.getAttributeValue(null, "name");
+						if (!runningOwls) {
+							qos[TIME] = Double.valueOf(reader.getAttributeValue(null, "Res"));
+							if (qos[TIME] > maxTime)
+								maxTime = qos[TIME];
+							if (qos[TIME] < minTime)
+								minTime = qos[TIME];
+							qos[COST] = Double.valueOf(reader.getAttributeValue(null, "Pri"));
+							if (qos[COST] > maxCost)
+								maxCost = qos[COST];
+							if (qos[COST] < minCost)
+								minCost = qos[COST];
+							qos[AVAILABILITY] = Double.valueOf(reader.getAttributeValue(null, "Ava"));
+							if (qos[AVAILABILITY] > maxAvailability)
+								maxAvailability = qos[AVAILABILITY];
+							qos[RELIABILITY] = Double.valueOf(reader.getAttributeValue(null, "Rel"));
+							if (qos[RELIABILITY] > maxReliability)
+								maxReliability = qos[RELIABILITY];
+						}
+					}
+					else if (tag.equals("inputs")) {
+						inInputs = true;
+					}
+					// The general possibility comes first by convention
+					else if (tag.equals("outputs")) {
+						probabilities.add(Float.valueOf(reader.getAttributeValue(null, "prob")));
+						outputs = new ArrayList<String>();
+					}
+					else if (tag.equals("instance")) {
+						if (inInputs)
+							inputs.add(reader.getAttributeValue(null, "name"));
+						else if (outputs != null)
+							outputs.add(reader.getAttributeValue(null, "name"));
+					}
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT) {
+					String tag = reader.getLocalName();
+
+					if (tag.equals("inputs")) {
+						inInputs = false;
+					}
+					else if (tag.equals("outputs")) {
+						outputPossibilities.add(outputs);
+						outputs = null;
+					}
+					else if (tag.equals("service")) {
+						Node ws = new Node(name, name, qos, inputs, outputPossibilities, probabilities);
+						serviceMap.put(name, ws);
+						inputs = new HashSet<String>();
+						outputPossibilities = new ArrayList<List<String>>();
+						probabilities = new ArrayList<Float>();
+						qos = new double[4];
+					}
+				}
+			}
+		}
+		catch (IOException ioe) {
+			System.out.println("Service file parsing failed...");
+		}
+		catch (XMLStreamException e) {
+			System.out.println("Service file parsing failed...");
+		}
+		finally {
+			try {
+				if (reader != null)
+					reader.close();
+				if (in != null)
+					in.close();
+			}
+			catch (XMLStreamException e) {
+				// Nothing left to release
+			}
+			catch (IOException e) {
+				// Nothing left to release
+			}
+		}
+	}
+
 	/**
 	 * Parses the WSC task file with the given name, extracting input and
 	 * output values to be used as the composition task.
@@ -1,6 +1,6 @@
 package ec.graph;
 
-import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -10,15 +10,25 @@ import java.util.Set;
 import ec.BreedingPipeline;
 import ec.EvolutionState;
 import ec.Individual;
+import ec.graph.taskNodes.ConditionNode;
+import ec.graph.taskNodes.TaskNode;
 import ec.util.Parameter;
 
 public class GraphMergePipeline extends BreedingPipeline {
+	// Whether offspring copy whole sections from the parents, rather than being rebuilt from the start node
+	public boolean inheritSections;
 
 	@Override
 	public Parameter defaultBase() {
 		return new Parameter("graphmergepipeline");
 	}
 
+	@Override
+	public void setup(EvolutionState state, Parameter base) {
+		super.setup(state, base);
+		inheritSections = state.parameters.getBoolean(base.push("inherit-sections"), defaultBase().push("inherit-sections"), false);
+	}
+
 	@Override
 	public int numSources() {
 		return 2;
@@ -36,15 +46,7 @@ public class GraphMergePipeline extends BreedingPipeline {
 		int n1 = sources[0].produce(min, max, 0, subpopulation, inds1, state, thread);
 		int n2 = sources[1].produce(min, max, 0, subpopulation, inds2, state, thread);
 
-        if (!(sources[0] instanceof BreedingPipeline)) {
-            for(int q=0;q<n1;q++)
-                inds1[q] = (Individual)(inds1[q].clone());
-        }
-
-        if (!(sources[1] instanceof BreedingPipeline)) {
-            for(int q=0;q<n2;q++)
-                inds2[q] = (Individual)(inds2[q].clone());
-        }
+        // The parents are only read, so they are not cloned
 
         if (!(inds1[0] instanceof GraphIndividual))
             // uh oh, wrong kind of individual
@@ -63,57 +65,112 @@ public class GraphMergePipeline extends BreedingPipeline {
         		GraphIndividual g1 = ((GraphIndividual)inds1[x]);
         		GraphIndividual g2 = ((GraphIndividual)inds2[x]);
 
-    		    GraphIndividual newG = mergeGraphs(g1, g2, init);
-
-    		    Map<String, List<Node>> baseToNodesMap = new HashMap<String, List<Node>>();
-
-    		    for (Node n : newG.nodeMap.values()) {
-    		    	List<Node> nodes = baseToNodesMap.get(n.getBaseName());
+        		if (inheritSections) {
+        			inds[q] = inherit(g1, g2, init, thread);
+        			inds[q].evaluated=false;
+        			continue;
+        		}
 
-    		    	if (nodes == null) {
-    		    		nodes = new ArrayList<Node>();
-    		    		baseToNodesMap.put(n.getBaseName(), nodes);
-    		    	}
+        		// Index the connections of both parents, without expanding or copying them
+    		    Map<Integer, List<Node>> mergedSuccessors = new HashMap<Integer, List<Node>>();
+    		    g1.addSuccessors(mergedSuccessors, init);
+    		    g2.addSuccessors(mergedSuccessors, init);
 
-    		    	nodes.add(n);
-    		    }
-
-
-    		    GraphSpecies species = (GraphSpecies) newG.species;
-    		    inds[q] = species.createNewBranchedGraph(newG, state, init.taskTree, baseToNodesMap);
+    		    GraphSpecies species = (GraphSpecies) g1.species;
+    		    inds[q] = species.createNewBranchedGraph(state, init.taskTree, mergedSuccessors, thread);
 	        	inds[q].evaluated=false;
         }
         return n1;
 	}
 
-	private GraphIndividual mergeGraphs(GraphIndividual g1, GraphIndividual g2, GraphInitializer init) {
-		GraphIndividual newG = new GraphIndividual();
+	/**
+	 * Creates an offspring that takes each task section from one of the two
+	 * parents, going down the task tree from the first section. A section
+	 * is copied from a randomly chosen parent if all of the nodes it uses
+	 * from earlier sections are already part of the offspring, or else from
+	 * the other parent. The first section only depends on the start node,
+	 * so it is always copied. If neither parent fits, the section and the
+	 * sections below it are constructed from the connections of both
+	 * parents, as in a full merge. The parents are only read.
+	 *
+	 * @param g1
+	 * @param g2
+	 * @param init
+	 * @param thread
+	 * @return offspring
+	 */
+	private GraphIndividual inherit(GraphIndividual g1, GraphIndividual g2, GraphInitializer init, int thread) {
+		GraphIndividual newGraph = new GraphIndividual();
+		newGraph.species = g1.species;
+		newGraph.addNode(init.startNode.clone());
+
+		CompactGraph[] parents = {g1.getCompactGraph(init), g2.getCompactGraph(init)};
+		// The connections of the parents are only indexed if a section has to be constructed
+		Map<Integer, List<Node>> mergedSuccessors = new HashMap<Integer, List<Node>>();
+		inheritSection(init.taskTree.getChildren().get(0), newGraph, parents, mergedSuccessors, init, init.random[thread]);
+
+		init.removeDanglingNodes(newGraph);
+		return newGraph;
+	}
+
+	private void inheritSection(TaskNode taskNode, GraphIndividual newGraph, CompactGraph[] parents,
+			Map<Integer, List<Node>> mergedSuccessors, GraphInitializer init, GraphRandom random) {
+		int section = taskNode.getCorrespondingNode().getSectionId();
+		int first = random.nextInt(2);
+		if (parents[first].copySection(section, newGraph) || parents[1 - first].copySection(section, newGraph)) {
+			if (taskNode instanceof ConditionNode) {
+				ConditionNode conditionNode = (ConditionNode) taskNode;
+				inheritSection(conditionNode.specificChild, newGraph, parents, mergedSuccessors, init, random);
+				inheritSection(conditionNode.generalChild, newGraph, parents, mergedSuccessors, init, random);
+			}
+		}
+		else
+			constructSection(taskNode, newGraph, parents, mergedSuccessors, init, random);
+	}
 
-		// Merge nodes
-		for (Node n: g1.nodeMap.values()) {
-			newG.nodeMap.put(n.getName(), n.clone());
-			newG.considerableNodeMap.put(n.getName(), n.clone());
+	/**
+	 * Constructs a section and the sections below it after the sections on
+	 * its path, drawing candidates from the connections of both parents.
+	 *
+	 * @param taskNode - task of the section
+	 * @param newGraph - offspring holding the sections on the path
+	 * @param parents
+	 * @param mergedSuccessors - services that follow each service in the parents, filled in on first use
+	 * @param init
+	 * @param random
+	 */
+	private void constructSection(TaskNode taskNode, GraphIndividual newGraph, CompactGraph[] parents,
+			Map<Integer, List<Node>> mergedSuccessors, GraphInitializer init, GraphRandom random) {
+		if (mergedSuccessors.isEmpty()) {
+			for (CompactGraph parent : parents)
+				parent.addSuccessors(mergedSuccessors);
 		}
-		for (Node n: g2.nodeMap.values()) {
-			newG.nodeMap.put(n.getName(), n.clone());
-			newG.considerableNodeMap.put(n.getName(), n.clone());
+
+		GraphSpecies species = (GraphSpecies) newGraph.species;
+		BitSet currentGoalInputs = new BitSet();
+		Set<String> seenNodes = new HashSet<String>();
+		CandidateBag candidateList = new CandidateBag(init);
+		Map<String, Node> allowedAncestors = new HashMap<String, Node>();
+
+		// All ancestors must be seen before any candidates are added
+		BitSet path = init.sectionPaths[taskNode.getCorrespondingNode().getSectionId()];
+		for (Node node : newGraph.nodeMap.values()) {
+			if (node.getKind() == Node.Kind.START || path.get(node.getSectionId())) {
+				seenNodes.add(node.getBaseName());
+				allowedAncestors.put(node.getBaseName(), node);
+				candidateList.provide(node);
+			}
 		}
+		for (Node node : allowedAncestors.values())
+			species.addToCandidateListFromEdges(node, seenNodes, candidateList, mergedSuccessors);
 
-		// Merge edges
-		Set<Edge> edgesToMerge = new HashSet<Edge>();
-		edgesToMerge.addAll(g1.edgeList);
-		edgesToMerge.addAll(g2.edgeList);
-
-		for (Edge e : edgesToMerge) {
-			Edge newE = new Edge(e.getIntersect());
-			Node fromNode = newG.nodeMap.get(e.getFromNode().getName());
-			newE.setFromNode(fromNode);
-			Node toNode = newG.nodeMap.get(e.getToNode().getName());
-			newE.setToNode(toNode);
-			newG.edgeList.add(newE);
-			fromNode.getOutgoingEdgeList().add(newE);
-			toNode.getIncomingEdgeList().add(newE);
+		if (!(taskNode instanceof ConditionNode)) {
+			for (Node candidate : allowedAncestors.values())
+				species.addToGoalInputs(candidate, currentGoalInputs, init, taskNode.getCorrespondingNode().getName(), false, false);
 		}
-		return newG;
+
+		// Dangling nodes are removed once every section is in place
+		species.finishConstructingBranchedGraph(taskNode, candidateList, new HashMap<String, Edge>(), currentGoalInputs, init,
+				newGraph, seenNodes, init.relevant, allowedAncestors, false, mergedSuccessors, random);
 	}
 }
@@ -1,10 +1,7 @@
 package ec.graph;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -18,12 +15,20 @@ import ec.graph.taskNodes.TaskNode;
 import ec.util.Parameter;
 
 public class GraphMutationPipeline extends BreedingPipeline {
+	// Whether a selected service is first replaced in place, rather than rebuilding everything after it
+	public boolean local;
 
 	@Override
 	public Parameter defaultBase() {
 		return new Parameter("graphappendpipeline");
 	}
 
+	@Override
+	public void setup(EvolutionState state, Parameter base) {
+		super.setup(state, base);
+		local = state.parameters.getBoolean(base.push("local"), defaultBase().push("local"), false);
+	}
+
 	@Override
 	public int numSources() {
 		return 1;
@@ -33,8 +38,6 @@ public class GraphMutationPipeline extends BreedingPipeline {
 	public int produce(int min, int max, int start, int subpopulation,
 			Individual[] inds, EvolutionState state, int thread) {
 
-		GraphInitializer init = (GraphInitializer) state.initializer;
-
 		int n = sources[0].produce(min, max, start, subpopulation, inds, state, thread);
 
         if (!(sources[0] instanceof BreedingPipeline)) {
@@ -49,252 +52,303 @@ public class GraphMutationPipeline extends BreedingPipeline {
 
         // Perform mutation
         for(int q=start;q<n+start;q++) {
-            GraphIndividual graph = (GraphIndividual)inds[q];
-            String originalGraph = graph.toString();
-
-            GraphSpecies species = (GraphSpecies) graph.species;
-            Object[] nodes = graph.nodeMap.values().toArray();
-
-            // Select node from which to perform mutation
-            Node selected = null;
-            while (selected == null) {
-                Node temp = (Node) nodes[init.random.nextInt( nodes.length )];
-                if (!temp.getName().startsWith( "end" ) && !temp.getName().startsWith("cond")) {
-                    if (temp.getName().equals( "start" ))
-                        selected = temp;
-                    else {
-                        String goalName = temp.getName().split( "_" )[1];
-                        Node goal = graph.nodeMap.get( goalName );
-                        if (hasPath(temp, goal, graph))
-                            selected = temp;
-                    }
-                }
-            }
-
-            if (selected.getName().equals( "start" )) {
-                // Create an entirely new graph
-                graph = species.createNewBranchedGraph( null, state, init.taskTree, null );
-            }
-            else {
-
-            	String selectedName = selected.getName();
-                TaskNode taskNode = null;
-
-                // If the selected node is a service
-                if (selectedName.contains("_")) {
-                	String[] tokens = selectedName.split("_");
-                	String name = tokens[tokens.length - 1];
-
-                	if (name.startsWith("end")) {
-                		taskNode = retrieveTaskNode(init.endNodes, name);
-                	}
-                	else {
-                		taskNode = retrieveTaskNode(init.condNodes, name);
-                	}
-                }
-                // Else, if the selected node is a condition
-                else {
-                	taskNode = retrieveTaskNode(init.condNodes, selectedName);
-                }
-
-                // Find all nodes that should be removed based on edge connections
-                Set<Node> nodesToRemove = findNodesToRemove(selected);
-
-                // Now mark obliteration of nodes that are satisfying goals after current goal
-                Set<String> suffixesToDelete = new HashSet<String>();
-
-                Queue<TaskNode> deleteQueue = new LinkedList<TaskNode>();
-
-                if (taskNode.getChildren() != null) {
-	                for (TaskNode tn : taskNode.getChildren())
-	                	deleteQueue.offer(tn);
-                }
-
-                while (!deleteQueue.isEmpty()) {
-                	TaskNode current = deleteQueue.poll();
-                	suffixesToDelete.add(current.getCorrespondingNode().getName());
-
-                	if (current.getChildren() != null) {
-    	                for (TaskNode tn : current.getChildren())
-    	                	deleteQueue.offer(tn);
-                    }
-                }
-
-                if (!suffixesToDelete.isEmpty()) {
-                	for (String nodeName : graph.nodeMap.keySet()){
-                		String[] tokens = nodeName.split("_");
-                		String suffix = null;
-
-                		if (tokens.length > 1) {
-                			suffix = tokens[tokens.length-1];
-                		}
-                		else {
-                			suffix = tokens[0];
-                		}
-
-                		if (suffixesToDelete.contains(suffix)) {
-                			nodesToRemove.add(graph.nodeMap.get(nodeName));
-                		}
-                	}
-                }
-
-
-
-                Set<Edge> edgesToRemove = new HashSet<Edge>();
-
-                // Remove nodes and edges
-                for (Node node : nodesToRemove) {
-                    graph.nodeMap.remove( node.getName() );
-                    graph.considerableNodeMap.remove( node.getName() );
-
-                    for (Edge e : node.getIncomingEdgeList()) {
-                        edgesToRemove.add( e );
-                        e.getFromNode().getOutgoingEdgeList().remove( e );
-                    }
-                    for (Edge e : node.getOutgoingEdgeList()) {
-                        edgesToRemove.add( e );
-                        e.getToNode().getIncomingEdgeList().remove( e );
-                    }
-                }
-
-                for (Edge edge : edgesToRemove) {
-                    graph.edgeList.remove( edge );
-                    graph.considerableEdgeList.remove( edge );
-                }
-
-                // Create data structures
-                Set<Node> relevant = init.relevant;
-
-                Set<String> currentGoalInputs = new HashSet<String>();
-
-                Set<String> seenNodes = new HashSet<String>();
-                List<Node> candidateList = new ArrayList<Node>();
-                Set<String> allowedAncestors = new HashSet<String>();
-
-                // Must add all nodes as seen before adding candidate list entries. Do this by navigating the graph backwards, from the selected nodes
-                Set<String> seenSuffix = new HashSet<String>();
-                TaskNode currTask = taskNode;
-                while (currTask != null) {
-                	seenSuffix.add(currTask.getCorrespondingNode().getName());
-                	currTask = currTask.getParent();
-                }
-
-                for (Node node : graph.nodeMap.values()) {
-                	String[] nameTokens = node.getName().split("_");
-                	String nameTag;
-                	if (nameTokens.length > 1) {
-                		nameTag = nameTokens[nameTokens.length - 1];
-                	}
-                	else
-                		nameTag = nameTokens[0];
-
-                	if (seenSuffix.contains(nameTag)) {
-                		seenNodes.add(node.getBaseName());
-                		allowedAncestors.add(node.getName());
-                	}
-                }
-
-                // Need to run through the tree again to add candidates to the candidate list (must be done after all all seen nodes were recorded)
-                // Not only tree, but any node with the allowed suffixes XXX
-
-                for (Node node : graph.nodeMap.values()) {
-                	String[] nameTokens = node.getName().split("_");
-                	String nameTag;
-                	if (nameTokens.length > 1) {
-                		nameTag = nameTokens[nameTokens.length - 1];
-                	}
-                	else
-                		nameTag = nameTokens[0];
-
-                	if (seenSuffix.contains(nameTag)) {
-                		if (!node.getName().startsWith( "end" )) {
-
-                    		boolean isCond = false;
-                    		boolean isIfBranch = false;
-                    		if (node.getName().startsWith("cond")) {
-                    			isCond = true;
-                    			isIfBranch = determineWhetherIfBranch(node.getTaskNode(), taskNode);
-                    		}
-                            species.addToCandidateList( node, seenNodes, relevant, candidateList, init, isCond, isIfBranch);
-                    	}
-                	}
-                }
-
-
-
-//                Queue<Node> queue = new LinkedList<Node>();
-//
-//                for (Edge e : selected.getIncomingEdgeList()) {
-//                	queue.add(e.getFromNode());
-//                }
-//
-//                while (!queue.isEmpty()) {
-//                	Node node = queue.poll();
-//
-//                	if (!node.getName().startsWith( "end" )) {
-//
-//                		boolean isCond = false;
-//                		boolean isIfBranch = false;
-//                		if (node.getName().startsWith("cond")) {
-//                			isCond = true;
-//                			isIfBranch = determineWhetherIfBranch(node.getTaskNode(), taskNode);
-//                		}
-//                        species.addToCandidateList( node, seenNodes, relevant, candidateList, init, isCond, isIfBranch);
-//                	}
-//                	for (Edge e : node.getIncomingEdgeList())
-//                		queue.add(e.getFromNode());
-//                }
-
-                Collections.shuffle(candidateList, init.random);
-                Map<String,Edge> connections = new HashMap<String,Edge>();
-
-    			if (!(taskNode instanceof ConditionNode)) {
-
-    				for (String key : graph.nodeMap.keySet()) {
-
-    					Node candidate = null;
-
-    					if (!key.startsWith("end") && allowedAncestors.contains(key)) {
-    						candidate = graph.nodeMap.get(key);
-    					}
-
-    					if (candidate != null)
-    						species.addToGoalInputs(candidate, currentGoalInputs, init, taskNode.getCorrespondingNode().getName(), false, false);
-    				}
-    			}
-
-                // Continue constructing graph
-    			Set<String> originalGoalInputs = new HashSet<String>(currentGoalInputs);
-                species.finishConstructingBranchedGraph(taskNode, candidateList, connections, currentGoalInputs, init, graph, null, seenNodes, relevant, allowedAncestors, true, null);
-            }
-            graph.evaluated=false;
+            inds[q] = mutate((GraphIndividual)inds[q], state, thread);
+            inds[q].evaluated=false;
         }
         return n;
 	}
 
-	private Set<Node> findNodesToRemove(Node selected) {
-	    Set<Node> nodes = new HashSet<Node>();
-	    _findNodesToRemove(selected, nodes);
-	    return nodes;
+	/**
+	 * Mutates the given individual by removing a randomly selected service
+	 * together with everything that depends on it, then reconstructing the
+	 * graph from there. If the start node is selected, an entirely new graph
+	 * is created instead. In local mode, the selected service is first
+	 * replaced by a compatible one, and the graph is only rebuilt if there
+	 * is no such service.
+	 *
+	 * The working collections of the calling thread are reused, so only the
+	 * nodes and edges added by the reconstruction are allocated.
+	 *
+	 * @param graph
+	 * @param state
+	 * @param thread
+	 * @return the mutated individual
+	 */
+	public GraphIndividual mutate(GraphIndividual graph, EvolutionState state, int thread) {
+		GraphInitializer init = (GraphInitializer) state.initializer;
+		GraphRandom random = init.random[thread];
+		MutationScratch scratch = init.mutationScratch[thread];
+		scratch.clear();
+
+		graph.expand();
+		GraphSpecies species = (GraphSpecies) graph.species;
+
+		// Select node from which to perform mutation
+		List<Node> mutationPoints = findMutationPoints(graph, init, scratch);
+		Node selected = mutationPoints.get(random.nextInt( mutationPoints.size() ));
+
+		if (selected.getKind() == Node.Kind.START) {
+			// Create an entirely new graph
+			return species.createNewBranchedGraph( state, init.taskTree, null, thread );
+		}
+
+		if (local) {
+			if (replaceService(graph, selected, species, init, scratch, random))
+				return graph;
+			// No compatible service, so rebuild the graph after the selected node instead
+			scratch.clear();
+		}
+
+		// The selected node is a service, so retrieve the task of its section
+		int selectedSection = selected.getSectionId();
+		TaskNode taskNode = init.sectionNodes[selectedSection].getTaskNode();
+
+		// Find all nodes that should be removed based on edge connections
+		Set<Node> nodesToRemove = scratch.nodesToRemove;
+		findNodesToRemove(selected, nodesToRemove, scratch.queue);
+
+		// Now mark obliteration of nodes that are satisfying goals after current goal
+		BitSet sectionsToDelete = init.sectionDescendants[selectedSection];
+		if (!sectionsToDelete.isEmpty()) {
+			for (Node node : graph.nodeMap.values()) {
+				if (node.getSectionId() >= 0 && sectionsToDelete.get(node.getSectionId())) {
+					nodesToRemove.add(node);
+				}
+			}
+		}
+
+		Set<Edge> edgesToRemove = scratch.edgesToRemove;
+
+		// Remove nodes and edges
+		for (Node node : nodesToRemove) {
+			graph.removeNode( node );
+
+			for (Edge e : node.getIncomingEdgeList()) {
+				edgesToRemove.add( e );
+				e.getFromNode().getOutgoingEdgeList().remove( e );
+			}
+			for (Edge e : node.getOutgoingEdgeList()) {
+				edgesToRemove.add( e );
+				e.getToNode().getIncomingEdgeList().remove( e );
+			}
+		}
+
+		for (Edge edge : edgesToRemove) {
+			graph.removeEdge( edge );
+		}
+
+		// Create data structures
+		Set<Node> relevant = init.relevant;
+		BitSet currentGoalInputs = scratch.currentGoalInputs;
+		Set<String> seenNodes = scratch.seenNodes;
+		CandidateBag candidateList = scratch.candidates;
+		Map<String, Node> allowedAncestors = scratch.allowedAncestors;
+
+		// Must add all nodes as seen before adding candidate list entries, taking those in the sections leading to the selected node
+		BitSet seenSections = init.sectionPaths[selectedSection];
+
+		for (Node node : graph.nodeMap.values()) {
+			if (node.getKind() == Node.Kind.START || seenSections.get(node.getSectionId())) {
+				seenNodes.add(node.getBaseName());
+				allowedAncestors.put(node.getBaseName(), node);
+				candidateList.provide(node);
+			}
+		}
+
+		// Need to run through the tree again to add candidates to the candidate list (must be done after all all seen nodes were recorded)
+		// Not only tree, but any node with the allowed suffixes XXX
+		for (Node node : graph.nodeMap.values()) {
+			if (node.getKind() == Node.Kind.START || seenSections.get(node.getSectionId())) {
+				if (node.getKind() != Node.Kind.END) {
+					boolean isCond = false;
+					boolean isIfBranch = false;
+					if (node.getKind() == Node.Kind.CONDITION) {
+						isCond = true;
+						isIfBranch = determineWhetherIfBranch(node.getTaskNode(), taskNode);
+					}
+					species.addToCandidateList( node, seenNodes, relevant, candidateList, init, isCond, isIfBranch);
+				}
+			}
+		}
+
+		if (!(taskNode instanceof ConditionNode)) {
+			for (Node candidate : allowedAncestors.values()) {
+				if (candidate.getKind() != Node.Kind.END)
+					species.addToGoalInputs(candidate, currentGoalInputs, init, taskNode.getCorrespondingNode().getName(), false, false);
+			}
+		}
 
+		// Continue constructing graph
+		species.finishConstructingBranchedGraph(taskNode, candidateList, scratch.connections, currentGoalInputs, init, graph, seenNodes, relevant, allowedAncestors, true, null, random);
+		return graph;
 	}
 
-	private void _findNodesToRemove(Node current, Set<Node> nodes) {
-        nodes.add( current );
-        for (Edge e: current.getOutgoingEdgeList()) {
-            _findNodesToRemove(e.getToNode(), nodes);
-        }
+	/**
+	 * Adds the given node and every node reachable from it to the set.
+	 *
+	 * @param selected
+	 * @param nodes
+	 * @param queue - empty queue to work with
+	 */
+	private void findNodesToRemove(Node selected, Set<Node> nodes, Queue<Node> queue) {
+		nodes.add(selected);
+		queue.offer(selected);
+		while (!queue.isEmpty()) {
+			for (Edge e : queue.poll().getOutgoingEdgeList()) {
+				if (nodes.add(e.getToNode()))
+					queue.offer(e.getToNode());
+			}
+		}
 	}
 
-	private TaskNode retrieveTaskNode(List<Node> nodes, String name) {
-		TaskNode taskNode = null;
-		for (Node e : nodes) {
-    		if (e.getName().equals(name)) {
-    			taskNode = e.getTaskNode();
-    			break;
-    		}
-    	}
-		return taskNode;
+	/**
+	 * Replaces the selected service with another service that provides all
+	 * of the concepts the selected service passes on, and whose inputs can
+	 * be satisfied by nodes that do not depend on the selected service. The
+	 * replacement takes over the outgoing edges of the selected service and
+	 * is connected to its own providers, and the services that only fed the
+	 * selected service are removed. The rest of the graph is left as it is.
+	 *
+	 * @param graph
+	 * @param selected - service to replace
+	 * @param species
+	 * @param init
+	 * @param scratch
+	 * @param random
+	 * @return true if the service was replaced, false if no compatible service was found
+	 */
+	private boolean replaceService(GraphIndividual graph, Node selected, GraphSpecies species, GraphInitializer init, MutationScratch scratch, GraphRandom random) {
+		// Condition nodes also depend on the probabilities of the service satisfying them
+		List<Edge> outgoing = selected.getOutgoingEdgeList();
+		int[] passedOn = null;
+		for (Edge e : outgoing) {
+			if (e.getToNode().getKind() == Node.Kind.CONDITION)
+				return false;
+			if (passedOn == null && e.getIntersect().length > 0)
+				passedOn = e.getIntersect();
+		}
+		if (passedOn == null)
+			return false;
+
+		// Nodes reachable from the selected service cannot feed the replacement without creating a cycle
+		Set<Node> dependants = scratch.nodesToRemove;
+		findNodesToRemove(selected, dependants, scratch.queue);
+
+		// Services already used before or after this section cannot be used again, as in construction
+		int section = selected.getSectionId();
+		BitSet path = init.sectionPaths[section];
+		BitSet descendants = init.sectionDescendants[section];
+		Set<String> usedNames = scratch.seenNodes;
+		Map<String, Node> providers = scratch.allowedAncestors;
+		for (Node node : graph.nodeMap.values()) {
+			int nodeSection = node.getSectionId();
+			boolean onPath = node.getKind() == Node.Kind.START || (nodeSection >= 0 && path.get(nodeSection));
+			if (onPath || (nodeSection >= 0 && descendants.get(nodeSection)))
+				usedNames.add(node.getBaseName());
+			if (onPath && node.getKind() != Node.Kind.END && !dependants.contains(node))
+				providers.put(node.getBaseName(), node);
+		}
+
+		// Every replacement must provide the first concept passed on, so only its providers are considered
+		Node replacement = null;
+		int numCompatible = 0;
+		List<Node> candidates = init.taxonomyNodes[passedOn[0]].servicesWithOutput;
+		for (int i = 0; i < candidates.size(); i++) {
+			Node candidate = candidates.get(i);
+			if (isCompatible(candidate, outgoing, usedNames, providers, init) && random.nextInt(++numCompatible) == 0)
+				replacement = candidate;
+		}
+		if (replacement == null)
+			return false;
+
+		// Detach the selected service from its providers
+		graph.removeNode(selected);
+		for (Edge e : selected.getIncomingEdgeList()) {
+			e.getFromNode().getOutgoingEdgeList().remove(e);
+			graph.removeEdge(e);
+		}
+
+		// Connect the replacement to its own providers
+		replacement = replacement.clone();
+		Map<String, Edge> connections = scratch.connections;
+		for (int input : replacement.getInputIds()) {
+			Node provider = findProvider(input, providers, init);
+			Edge e = connections.get(provider.getName());
+			if (e == null) {
+				e = new Edge();
+				e.setFromNode(provider);
+				e.setToNode(replacement);
+				connections.put(provider.getName(), e);
+			}
+			e.addIntersect(input);
+		}
+		species.connectCandidateToGraphByInputs(replacement, connections, graph, init, null, null, section);
+
+		// Hand the outgoing edges of the selected service over to the replacement
+		for (Edge old : outgoing) {
+			Node to = old.getToNode();
+			Edge e = new Edge(old.getIntersect());
+			e.setFromNode(replacement);
+			e.setToNode(to);
+			List<Edge> incoming = to.getIncomingEdgeList();
+			incoming.set(incoming.indexOf(old), e);
+			replacement.getOutgoingEdgeList().add(e);
+			graph.removeEdge(old);
+			graph.addEdge(e);
+		}
+
+		// The inputs of the dependants changed, so their finish times must be calculated again
+		for (Node node : dependants)
+			node.setFinishTime(Double.NaN);
+
+		init.removeDanglingNodes(graph);
+		return true;
+	}
+
+	/**
+	 * @param candidate
+	 * @param outgoing - edges the candidate would take over
+	 * @param usedNames - base names of the services that cannot be used
+	 * @param providers - nodes the candidate may be connected to, by base name
+	 * @param init
+	 * @return true if the candidate can replace the service with the given outgoing edges
+	 */
+	private boolean isCompatible(Node candidate, List<Edge> outgoing, Set<String> usedNames, Map<String, Node> providers, GraphInitializer init) {
+		if (candidate.getKind() != Node.Kind.SERVICE || usedNames.contains(candidate.getBaseName()) || !init.relevant.contains(candidate))
+			return false;
+
+		int[] provided = init.providedConcepts[candidate.getServiceId()];
+		for (Edge e : outgoing) {
+			for (int concept : e.getIntersect()) {
+				if (Arrays.binarySearch(provided, concept) < 0)
+					return false;
+			}
+		}
+
+		for (int input : candidate.getInputIds()) {
+			if (findProvider(input, providers, init) == null)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the node that satisfies the given input, checking the services
+	 * in the same order as graph construction does.
+	 *
+	 * @param input - concept ID
+	 * @param providers - nodes to choose from, by base name
+	 * @param init
+	 * @return the providing node, or null if there is none
+	 */
+	private Node findProvider(int input, Map<String, Node> providers, GraphInitializer init) {
+		List<Node> services = init.taxonomyNodes[input].servicesWithOutput;
+		for (int i = 0; i < services.size(); i++) {
+			Node provider = providers.get(services.get(i).getBaseName());
+			if (provider != null)
+				return provider;
+		}
+		return null;
 	}
 
 	private boolean determineWhetherIfBranch(TaskNode current, TaskNode goal) {
@@ -309,25 +363,44 @@ public class GraphMutationPipeline extends BreedingPipeline {
 			return false;
 	}
 
-	private boolean hasPath(Node from, Node to, GraphIndividual graph) {
-	    Queue<Node> queue = new LinkedList<Node>();
-	    queue.offer( from );
-
-	    while (!queue.isEmpty()) {
-	        Node current = queue.poll();
-	        if (current == to)
-	            return true;
-	        else {
-	            List<Edge> edges = current.getOutgoingEdgeList();
-	            if (edges != null) {
-    	            for (Edge edge : edges) {
-    	                queue.offer( edge.getToNode() );
-    	            }
-	            }
-	        }
-	    }
-
-	    return false;
+	/**
+	 * Finds the nodes from which mutation can be performed: the start node,
+	 * and every service with a path to the goal node of its section. Nodes
+	 * are only ever connected to nodes of the same or of later sections, so
+	 * such a path never leaves the section. Each goal is therefore searched
+	 * backwards through the services of its own section only, and every node
+	 * is visited at most once.
+	 *
+	 * @param graph
+	 * @param init
+	 * @param scratch
+	 * @return list of mutation points, in node map order
+	 */
+	private List<Node> findMutationPoints(GraphIndividual graph, GraphInitializer init, MutationScratch scratch) {
+		Set<Node> reachesGoal = scratch.reachesGoal;
+		Queue<Node> queue = scratch.queue;
+
+		for (Node sectionNode : init.sectionNodes) {
+			Node goal = graph.nodeMap.get(sectionNode.getName());
+			if (goal == null)
+				continue;
+			int section = goal.getSectionId();
+			queue.offer(goal);
+			while (!queue.isEmpty()) {
+				for (Edge e : queue.poll().getIncomingEdgeList()) {
+					Node from = e.getFromNode();
+					if (from.getKind() == Node.Kind.SERVICE && from.getSectionId() == section && reachesGoal.add(from))
+						queue.offer(from);
+				}
+			}
+		}
+
+		List<Node> points = scratch.mutationPoints;
+		for (Node node : graph.nodeMap.values()) {
+			if (node.getKind() == Node.Kind.START || reachesGoal.contains(node))
+				points.add(node);
+		}
+		return points;
 	}
 
 //	private void addToCurrentGoalInputs(Set<String> currentGoalInputs, TaskNode taskNode, Node node, GraphInitializer init) {
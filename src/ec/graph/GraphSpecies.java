@@ -1,74 +1,99 @@
 package ec.graph;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import ec.EvolutionState;
 import ec.Individual;
 import ec.Species;
 import ec.graph.taskNodes.ConditionNode;
 import ec.graph.taskNodes.TaskNode;
+import ec.util.MersenneTwisterFast;
 import ec.util.Parameter;
 
 public class GraphSpecies extends Species {
+	// Whether evaluated individuals are kept in their compact representation
+	public boolean compact;
 
 	@Override
 	public Parameter defaultBase() {
 		return new Parameter("graphspecies");
 	}
 
+	@Override
+	public void setup(EvolutionState state, Parameter base) {
+		super.setup(state, base);
+		compact = state.parameters.getBoolean(base.push("compact"), defaultBase().push("compact"), false);
+	}
+
 	@Override
 	public Individual newIndividual(EvolutionState state, int thread) {
-		GraphIndividual ind = createNewBranchedGraph(null, state, ((GraphInitializer)state.initializer).taskTree, null);
+		GraphIndividual ind = createNewBranchedGraph(state, ((GraphInitializer)state.initializer).taskTree, null, thread);
 		return ind;
 	}
 
-	public GraphIndividual createNewBranchedGraph(GraphIndividual mergedGraph, EvolutionState state, TaskNode taskNode, Map<String, List<Node>> baseToNodesMap) {
+	public GraphIndividual createNewBranchedGraph(EvolutionState state, TaskNode taskNode, Map<Integer, List<Node>> mergedSuccessors, int thread) {
+		GraphInitializer init = (GraphInitializer) state.initializer;
+		return createNewBranchedGraph(state, taskNode, mergedSuccessors, init.random[thread]);
+	}
+
+	/**
+	 * Builds a new graph using the given random number generator, rather
+	 * than the generator of a breeding thread.
+	 *
+	 * @param state
+	 * @param taskNode - root of the task tree
+	 * @param mergedSuccessors - services that follow each service in the merged parents, or null
+	 * @param random
+	 * @return new graph
+	 */
+	public GraphIndividual createNewBranchedGraph(EvolutionState state, TaskNode taskNode, Map<Integer, List<Node>> mergedSuccessors, GraphRandom random) {
 		// The first goal node is the child of the input node
 		taskNode = taskNode.getChildren().get(0);
 
 		GraphInitializer init = (GraphInitializer) state.initializer;
 
 		GraphIndividual newGraph = new GraphIndividual();
+		newGraph.species = this;
 		Node start = init.startNode.clone();
 
-		Set<String> currentGoalInputs = new HashSet<String>();
+		BitSet currentGoalInputs = new BitSet(init.concepts.size());
 		Map<String,Edge> connections = new HashMap<String,Edge>();
 
 		// Connect start node
-		connectCandidateToGraphByInputs(start, connections, newGraph, init, currentGoalInputs, null, "");
+		connectCandidateToGraphByInputs(start, connections, newGraph, init, currentGoalInputs, null, -1);
 
 		Set<String> seenNodes = new HashSet<String>();
 		Set<Node> relevant = init.relevant;
-		List<Node> candidateList = new ArrayList<Node>();
+		CandidateBag candidateList = new CandidateBag(init);
+		candidateList.provide(start);
 
-		if (mergedGraph != null)
-			addToCandidateListFromEdges(start, mergedGraph, seenNodes, candidateList, init, baseToNodesMap);
+		if (mergedSuccessors != null)
+			addToCandidateListFromEdges(start, seenNodes, candidateList, mergedSuccessors);
 		else
 			addToCandidateList(start, seenNodes, relevant, candidateList, init, false, false);
 
-		Collections.shuffle(candidateList, init.random);
-
-		Set<String> allowedAncestors = new HashSet<String>();
-		allowedAncestors.add(start.getName());
+		Map<String, Node> allowedAncestors = new HashMap<String, Node>();
+		allowedAncestors.put(start.getBaseName(), start);
 
-		finishConstructingBranchedGraph(taskNode, candidateList, connections, currentGoalInputs, init, newGraph, mergedGraph, seenNodes, relevant, allowedAncestors, true, baseToNodesMap);
+		finishConstructingBranchedGraph(taskNode, candidateList, connections, currentGoalInputs, init, newGraph, seenNodes, relevant, allowedAncestors, true, mergedSuccessors, random);
 
 		return newGraph;
 
 	}
 
 	public void finishConstructingBranchedGraph(TaskNode taskNode,
-			List<Node> candidateList, Map<String, Edge> connections,
-			Set<String> currentGoalInputs, GraphInitializer init,
-			GraphIndividual newGraph, GraphIndividual mergedGraph,
-			Set<String> seenNodes, Set<Node> relevant,
-			Set<String> allowedAncestors, boolean removeDangling, Map<String, List<Node>> baseToNodesMap) {
+			CandidateBag candidateList, Map<String, Edge> connections,
+			BitSet currentGoalInputs, GraphInitializer init,
+			GraphIndividual newGraph, Set<String> seenNodes, Set<Node> relevant,
+			Map<String, Node> allowedAncestors, boolean removeDangling, Map<Integer, List<Node>> mergedSuccessors,
+			GraphRandom random) {
 
 		boolean goalReached = false;
 
@@ -76,44 +101,35 @@ public class GraphSpecies extends Species {
 
 		while (!goalReached) {
 
-			// Select node
+			// Select node, drawing ready candidates at random
 			int index;
 
-			candidateLoop: for (index = 0; index < candidateList.size(); index++) {
+			candidateLoop: while ((index = candidateList.next(random)) >= 0) {
 				Node candidate = candidateList.get(index).clone();
+				candidateList.remove(index);
 
 				// For all of the candidate inputs, check that there is a
 				// service already in the graph
 				// that can satisfy it
 				connections.clear();
 
-				for (String input : candidate.getInputs()) {
+				for (int input : candidate.getInputIds()) {
 					boolean found = false;
-					for (Node s : init.taxonomyMap.get(input).servicesWithOutput) {
-
-						String ancestor = s.getBaseName();
-						if (!s.getName().equals("start")
-								&& !s.getName().startsWith("cond")
-								&& !s.getName().startsWith("end")) {
-						    for (String a : allowedAncestors) {
-						        if (a.startsWith( s.getBaseName() )) {
-						            ancestor = a;
-						            break;
-						        }
-						    }
-						}
-						if (newGraph.considerableNodeMap.containsKey(ancestor) && allowedAncestors.contains( ancestor )) {
-							Set<String> intersect = new HashSet<String>();
-							intersect.add(input);
+					List<Node> providers = init.taxonomyNodes[input].servicesWithOutput;
+					for (int i = 0; i < providers.size(); i++) {
+						Node s = providers.get(i);
 
-                          Edge mapEdge = connections.get(ancestor);
+						Node ancestor = allowedAncestors.get(s.getBaseName());
+						if (ancestor != null) {
+                          Edge mapEdge = connections.get(ancestor.getName());
 							if (mapEdge == null) {
-								Edge e = new Edge(intersect);
-								e.setFromNode(newGraph.nodeMap.get(ancestor));
+								Edge e = new Edge();
+								e.addIntersect(input);
+								e.setFromNode(ancestor);
 								e.setToNode(candidate);
-                              connections.put(ancestor, e);
+                              connections.put(ancestor.getName(), e);
 							} else
-								mapEdge.getIntersect().addAll(intersect);
+								mapEdge.addIntersect(input);
 
 							found = true;
 							break;
@@ -132,14 +148,14 @@ public class GraphSpecies extends Species {
 				// the candidate list
 				goalCheckPair = connectCandidateToGraphByInputs(candidate,
 						connections, newGraph, init, currentGoalInputs,
-						taskNode, "_"
-								+ taskNode.getCorrespondingNode().getName());
+						taskNode, taskNode.getCorrespondingNode().getSectionId());
 				goalReached = goalCheckPair.a;
 
-				allowedAncestors.add(candidate.getName());
-				if (mergedGraph != null)
-					addToCandidateListFromEdges(candidate, mergedGraph,
-							seenNodes, candidateList, init, baseToNodesMap);
+				allowedAncestors.put(candidate.getBaseName(), candidate);
+				candidateList.provide(candidate);
+				if (mergedSuccessors != null)
+					addToCandidateListFromEdges(candidate, seenNodes,
+							candidateList, mergedSuccessors);
 				else
 					addToCandidateList(candidate, seenNodes, relevant,
 							candidateList, init, false, false);
@@ -147,13 +163,8 @@ public class GraphSpecies extends Species {
 				break;
 			}
 
-			if (index != candidateList.size()) {
-				candidateList.remove(index);
-				Collections.shuffle(candidateList, init.random);
-			}
-			else {
+			if (index < 0)
 				break;
-			}
 		}
 
 		// Connect end node to graph
@@ -165,17 +176,10 @@ public class GraphSpecies extends Species {
 
 				Node node = taskNode.getCorrespondingNode();
 
-				for (String ancestor : allowedAncestors) {
-					Node candidate = newGraph.nodeMap.get(ancestor);
+				for (Node candidate : allowedAncestors.values()) {
 
 					if (candidate.getOutputPossibilities().size() > 1) {
-						Set<String> generalConds = new HashSet<String>();
-						Set<String> specificConds = new HashSet<String>();
-
-						addToGoalInputs(candidate, generalConds, init, node.getName(), true, false);
-						addToGoalInputs(candidate, specificConds, init, node.getName(), true, true);
-
-						if (generalConds.contains(node.getGeneralCondition()) && specificConds.contains(node.getSpecificCondition())) {
+						if (satisfiesCondition(candidate, init, node)) {
 							goalCheckPair = new Pair<Boolean, Node>(true, candidate);
 							break;
 						}
@@ -191,150 +195,221 @@ public class GraphSpecies extends Species {
 			goal.setProbabilities(goalCheckPair.b.getProbabilities());
 
 			// Connect node
-			newGraph.nodeMap.put(goal.getName(), goal);
-			newGraph.considerableNodeMap.put(goal.getName(), goal);
-			Edge e = new Edge(new HashSet<String>());
+			newGraph.addNode(goal);
+			Edge e = new Edge();
 			e.setFromNode(goalCheckPair.b);
 			e.setToNode(goal);
-			goalCheckPair.b.getOutgoingEdgeList().add(e);
+			addOutgoingEdge(newGraph, e);
 			goal.getIncomingEdgeList().add(e);
-			newGraph.edgeList.add(e);
-			newGraph.considerableEdgeList.add(e);
+			newGraph.addEdge(e);
 
 			ConditionNode conditionNode = (ConditionNode) taskNode;
-			allowedAncestors.add(goal.getName());
-			Set<String> ifSeparateAncestors = new HashSet<String>(allowedAncestors);
+			allowedAncestors.put(goal.getBaseName(), goal);
+			candidateList.provide(goal);
+			Map<String, Node> ifSeparateAncestors = new HashMap<String, Node>(allowedAncestors);
 			Set<String> ifSeenNodes = new HashSet<String>(seenNodes);
-			List<Node> ifCandidateList = new ArrayList<Node>(candidateList);
-
-			currentGoalInputs.clear();
+			CandidateBag ifCandidateList = new CandidateBag(candidateList);
+
+			if (init.branchPool != null) {
+				// Build both branches at once, each into a fragment of its own, then add the fragments in order
+				BranchTask ifTask = new BranchTask(conditionNode.specificChild, true, goal, ifCandidateList,
+						new BitSet(), init, ifSeenNodes, relevant, ifSeparateAncestors,
+						mergedSuccessors, new GraphRandom(new MersenneTwisterFast(random.nextLong())));
+				// The collections of this call are not needed once the branches are built, so the else branch takes them over
+				BranchTask elseTask = new BranchTask(conditionNode.generalChild, false, goal, candidateList,
+						currentGoalInputs, init, seenNodes, relevant, allowedAncestors,
+						mergedSuccessors, new GraphRandom(new MersenneTwisterFast(random.nextLong())));
+
+				if (ForkJoinTask.inForkJoinPool())
+					ForkJoinTask.invokeAll(ifTask, elseTask);
+				else {
+					init.branchPool.execute(ifTask);
+					elseTask.invoke();
+					ifTask.join();
+				}
 
-			// If next task is an output node, update currentGoal inputs using ancestors
-			TaskNode node = conditionNode.specificChild;
+				addFragment(newGraph, ifTask.fragment);
+				addFragment(newGraph, elseTask.fragment);
+			}
+			else {
+				// First create the if branch (i.e. specific branch)
+				constructBranch(conditionNode.specificChild, true, goal,
+						ifCandidateList, connections, currentGoalInputs, init,
+						newGraph, ifSeenNodes, relevant,
+						ifSeparateAncestors, mergedSuccessors, random);
+
+				// Now create the else branch (i.e. general branch)
+				// The collections of this call are not needed once the branches are built, so the else branch takes them over
+				constructBranch(conditionNode.generalChild, false, goal,
+						candidateList, connections, currentGoalInputs, init,
+						newGraph, seenNodes, relevant,
+						allowedAncestors, mergedSuccessors, random);
+			}
 
-			if (!(node instanceof ConditionNode)) {
-				for (String ancestor : allowedAncestors) {
-					Node candidate = null;
-					for (String key : newGraph.nodeMap.keySet()) {
-						if (key.startsWith(ancestor)) {
-							candidate = newGraph.nodeMap.get(key);
-							break;
+		} else {
+			// The ancestors are exactly the nodes the goal may be connected to, also when building a branch fragment
+			for (Node s : allowedAncestors.values()) {
+				if (currentGoalInputs.isEmpty())
+					break;
+				Edge e = null;
+
+				for (int o : s.getOutputIds()[0]) {
+
+					int[] endNodeInputs = init.taxonomyNodes[o].endNodeInputs
+							.get(goal.getName());
+					if (endNodeInputs != null) {
+
+						for (int i : endNodeInputs) {
+							if (currentGoalInputs.get(i)) {
+								if (e == null)
+									e = new Edge();
+								e.addIntersect(i);
+								currentGoalInputs.clear(i);
+							}
 						}
 					}
+				}
 
-					addToGoalInputs(candidate, currentGoalInputs, init, node.getCorrespondingNode().getName(), false, false);
+				if (e != null) {
+					e.setFromNode(s);
+					e.setToNode(goal);
+					connections.put(e.getFromNode().getName(), e);
 				}
 			}
+			connectCandidateToGraphByInputs(goal, connections,
+					newGraph, init, currentGoalInputs, null, -1);
+		}
 
-			connections.clear();
-
-			// First create the if branch (i.e. specific branch)
-			if (mergedGraph != null)
-				addToCandidateListFromEdges(goal, mergedGraph, ifSeenNodes,
-						ifCandidateList, init, baseToNodesMap);
-			else
-				addToCandidateList(goal, ifSeenNodes, relevant, ifCandidateList,
-						init, true, true);
-
-			Collections.shuffle(ifCandidateList, init.random);
-			finishConstructingBranchedGraph(conditionNode.specificChild,
-					ifCandidateList, connections, currentGoalInputs, init,
-					newGraph, mergedGraph, ifSeenNodes, relevant,
-					ifSeparateAncestors, false, baseToNodesMap);
-
-			// Now create the else branch (i.e. general branch)
-			allowedAncestors.add(goal.getName());
-			Set<String> elseSeparateAncestors = new HashSet<String>(allowedAncestors);
-			Set<String> elseSeenNodes = new HashSet<String>(seenNodes);
-			List<Node> elseCandidateList = new ArrayList<Node>(candidateList);
-
-			currentGoalInputs.clear();
-
-			// If next task is an output node, update currentGoal inputs using ancestors
-			node = conditionNode.generalChild;
-
-			if (!(node instanceof ConditionNode)) {
-				for (String ancestor : allowedAncestors) {
-					Node candidate = null;
-					for (String key : newGraph.nodeMap.keySet()) {
-						if (key.startsWith(ancestor)) {
-							candidate = newGraph.nodeMap.get(key);
-							break;
-						}
-					}
+		if (removeDangling) {
+		    init.removeDanglingNodes(newGraph);
+		}
+	}
 
-					addToGoalInputs(candidate, currentGoalInputs, init, node.getCorrespondingNode().getName(), false, false);
-				}
+	/**
+	 * Builds one branch of a condition, starting from the condition node.
+	 *
+	 * @param child - task of the branch
+	 * @param isIfBranch - true for the specific branch, false for the general one
+	 * @param goal - condition node the branch starts from
+	 */
+	private void constructBranch(TaskNode child, boolean isIfBranch, Node goal,
+			CandidateBag candidateList, Map<String, Edge> connections,
+			BitSet currentGoalInputs, GraphInitializer init,
+			GraphIndividual newGraph, Set<String> seenNodes, Set<Node> relevant,
+			Map<String, Node> allowedAncestors, Map<Integer, List<Node>> mergedSuccessors,
+			GraphRandom random) {
+		currentGoalInputs.clear();
+
+		// If next task is an output node, update currentGoal inputs using ancestors
+		if (!(child instanceof ConditionNode)) {
+			for (Node candidate : allowedAncestors.values()) {
+				addToGoalInputs(candidate, currentGoalInputs, init, child.getCorrespondingNode().getName(), false, false);
 			}
+		}
 
-			connections.clear();
+		connections.clear();
 
-			if (mergedGraph != null)
-				addToCandidateListFromEdges(goal, mergedGraph, elseSeenNodes,
-				elseCandidateList, init, baseToNodesMap);
-			else
-				addToCandidateList(goal, elseSeenNodes, relevant, elseCandidateList,
-						init, true, false);
+		if (mergedSuccessors != null)
+			addToCandidateListFromEdges(goal, seenNodes,
+					candidateList, mergedSuccessors);
+		else
+			addToCandidateList(goal, seenNodes, relevant, candidateList,
+					init, true, isIfBranch);
 
-			Collections.shuffle(elseCandidateList, init.random);
-			finishConstructingBranchedGraph(conditionNode.generalChild,
-			elseCandidateList, connections, currentGoalInputs, init,
-					newGraph, mergedGraph, elseSeenNodes, relevant,
-					elseSeparateAncestors, false, baseToNodesMap);
+		finishConstructingBranchedGraph(child,
+				candidateList, connections, currentGoalInputs, init,
+				newGraph, seenNodes, relevant,
+				allowedAncestors, false, mergedSuccessors, random);
+	}
 
-		} else {
-			Set<Node> nodeSet = new HashSet<Node>(newGraph.nodeMap.values());
-			for (Node s : nodeSet) {
-				if (!currentGoalInputs.isEmpty()) {
-					if (allowedAncestors.contains(s.getName())) {
-						Set<String> intersection = new HashSet<String>();
-
-						for (String o : s.getOutputPossibilities().get(0)) {
-
-							Set<String> endNodeInputs = init.taxonomyMap.get(o).endNodeInputs
-									.get(goal.getName());
-							if (endNodeInputs != null
-									&& !endNodeInputs.isEmpty()) {
-
-								for (String i : endNodeInputs) {
-									if (currentGoalInputs.contains(i)) {
-										intersection.add(i);
-										currentGoalInputs.remove(i);
-									}
-								}
-							}
-						}
+	/**
+	 * Construction of one condition branch into a separate fragment, so that
+	 * the two branches can be built at the same time. A fragment only holds
+	 * the nodes and edges added by its branch, and the nodes it connects to
+	 * outside the fragment are left untouched until it is added to the graph.
+	 */
+	private class BranchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final TaskNode child;
+		private final boolean isIfBranch;
+		private final Node goal;
+		private final CandidateBag candidateList;
+		private final BitSet currentGoalInputs;
+		private final GraphInitializer init;
+		private final Set<String> seenNodes;
+		private final Set<Node> relevant;
+		private final Map<String, Node> allowedAncestors;
+		private final Map<Integer, List<Node>> mergedSuccessors;
+		private final GraphRandom random;
+		final GraphIndividual fragment = new GraphIndividual();
+
+		BranchTask(TaskNode child, boolean isIfBranch, Node goal, CandidateBag candidateList,
+				BitSet currentGoalInputs, GraphInitializer init, Set<String> seenNodes, Set<Node> relevant,
+				Map<String, Node> allowedAncestors, Map<Integer, List<Node>> mergedSuccessors, GraphRandom random) {
+			this.child = child;
+			this.isIfBranch = isIfBranch;
+			this.goal = goal;
+			this.candidateList = candidateList;
+			this.currentGoalInputs = currentGoalInputs;
+			this.init = init;
+			this.seenNodes = seenNodes;
+			this.relevant = relevant;
+			this.allowedAncestors = allowedAncestors;
+			this.mergedSuccessors = mergedSuccessors;
+			this.random = random;
+		}
 
-						if (!intersection.isEmpty()) {
-							Edge e = new Edge(intersection);
-							e.setFromNode(s);
-							e.setToNode(goal);
-							connections.put(e.getFromNode().getName(), e);
-						}
-					}
-				}
-			}
-			connectCandidateToGraphByInputs(goal, connections,
-					newGraph, init, currentGoalInputs, null, "");
+		@Override
+		protected void compute() {
+			constructBranch(child, isIfBranch, goal, candidateList, new HashMap<String, Edge>(),
+					currentGoalInputs, init, fragment, seenNodes, relevant, allowedAncestors,
+					mergedSuccessors, random);
 		}
+	}
 
-		if (removeDangling) {
-		    init.removeDanglingNodes(newGraph);
+	/**
+	 * Adds the nodes and edges of a branch fragment to the graph, giving the
+	 * nodes outside the fragment their outgoing edges.
+	 *
+	 * @param graph
+	 * @param fragment
+	 */
+	private static void addFragment(GraphIndividual graph, GraphIndividual fragment) {
+		for (Node n : fragment.nodeMap.values())
+			graph.addNode(n);
+		for (Edge e : fragment.edgeList) {
+			graph.addEdge(e);
+			if (fragment.nodeMap.get(e.getFromNode().getName()) != e.getFromNode())
+				addOutgoingEdge(graph, e);
 		}
 	}
 
-	public Pair<Boolean, Node> connectCandidateToGraphByInputs(Node candidate, Map<String,Edge> connections, GraphIndividual graph, GraphInitializer init, Set<String> currentGoalInputs, TaskNode taskNode, String suffix) {
-		candidate.setName(candidate.getBaseName() + suffix);
+	/**
+	 * Adds the edge to the outgoing edges of its source node, if that node
+	 * belongs to the given graph. Nodes outside a branch fragment are given
+	 * their edges when the fragment is added to the graph.
+	 *
+	 * @param graph
+	 * @param e
+	 */
+	private static void addOutgoingEdge(GraphIndividual graph, Edge e) {
+		Node fromNode = graph.nodeMap.get(e.getFromNode().getName());
+		if (fromNode == e.getFromNode())
+			fromNode.getOutgoingEdgeList().add(e);
+	}
+
+	public Pair<Boolean, Node> connectCandidateToGraphByInputs(Node candidate, Map<String,Edge> connections, GraphIndividual graph, GraphInitializer init, BitSet currentGoalInputs, TaskNode taskNode, int section) {
+		if (section >= 0) {
+			candidate.setSectionId(section);
+			candidate.setName(init.getNodeName(candidate.getServiceId(), section));
+		}
 
-		graph.nodeMap.put(candidate.getName(), candidate);
-		graph.considerableNodeMap.put(candidate.getName(), candidate);
-		graph.edgeList.addAll(connections.values());
-		graph.considerableEdgeList.addAll(connections.values());
+		graph.addNode(candidate);
 		candidate.getIncomingEdgeList().addAll(connections.values());
 
 		for (Edge e : connections.values()) {
-			Node fromNode = graph.nodeMap.get(e.getFromNode().getName());
-			fromNode.getOutgoingEdgeList().add(e);
+			graph.addEdge(e);
+			addOutgoingEdge(graph, e);
 		}
 
 		if (taskNode != null) {
@@ -344,14 +419,7 @@ public class GraphSpecies extends Species {
 			if (isConditionalTask) {
 				if (candidate.getProbabilities().size() > 1) { // XXX
 
-					Node node = taskNode.getCorrespondingNode();
-					Set<String> generalConds = new HashSet<String>();
-					Set<String> specificConds = new HashSet<String>();
-
-					addToGoalInputs(candidate, generalConds, init, node.getName(), true, false);
-					addToGoalInputs(candidate, specificConds, init, node.getName(), true, true);
-
-					return new Pair<Boolean, Node>(generalConds.contains(node.getGeneralCondition()) && specificConds.contains(node.getSpecificCondition()), candidate);
+					return new Pair<Boolean, Node>(satisfiesCondition(candidate, init, taskNode.getCorrespondingNode()), candidate);
 				}
 				else {
 					return new Pair<Boolean, Node>(false, candidate);
@@ -361,49 +429,101 @@ public class GraphSpecies extends Species {
 			else {
 				addToGoalInputs(candidate, currentGoalInputs, init, taskNode.getCorrespondingNode().getName(), false, false);
 
-				return new Pair<Boolean, Node>(currentGoalInputs.containsAll(taskNode.getCorrespondingNode().getInputs()), null);
+				return new Pair<Boolean, Node>(containsAll(currentGoalInputs, taskNode.getCorrespondingNode().getInputIds()), null);
 			}
 		}
 
 		return new Pair<Boolean, Node>(false, null);
 	}
 
-	public void addToGoalInputs(Node candidate, Set<String> goalInputs, GraphInitializer init, String taskName, boolean isConditionalGoal, boolean isIfBranch) {
+	public void addToGoalInputs(Node candidate, BitSet goalInputs, GraphInitializer init, String taskName, boolean isConditionalGoal, boolean isIfBranch) {
 		if (candidate == null)
 			return;
 
 		if (isConditionalGoal) {
 			if (isIfBranch) {
-				for (String o : candidate.getOutputPossibilities().get(1)) {
-					TaxonomyNode taxNode = init.taxonomyMap.get(o);
-					Set<String> inputs = taxNode.condNodeSpecificInputs.get(taskName);
+				for (int o : candidate.getOutputIds()[1]) {
+					TaxonomyNode taxNode = init.taxonomyNodes[o];
+					int[] inputs = taxNode.condNodeSpecificInputs.get(taskName);
 					if (inputs != null)
-						goalInputs.addAll(inputs);
+						addAll(goalInputs, inputs);
 				}
 			}
 			else {
-				for (String o : candidate.getOutputPossibilities().get(0)) {
-					TaxonomyNode taxNode = init.taxonomyMap.get(o);
-					Set<String> inputs = taxNode.condNodeGeneralInputs.get(taskName);
+				for (int o : candidate.getOutputIds()[0]) {
+					TaxonomyNode taxNode = init.taxonomyNodes[o];
+					int[] inputs = taxNode.condNodeGeneralInputs.get(taskName);
 					if (inputs != null)
-						goalInputs.addAll(inputs);
+						addAll(goalInputs, inputs);
 				}
 			}
 		}
 		else {
-			for (String o : candidate.getOutputPossibilities().get(0)) {
-				TaxonomyNode taxNode = init.taxonomyMap.get(o);
-				Set<String> outputs = taxNode.endNodeInputs.get(taskName);
+			for (int o : candidate.getOutputIds()[0]) {
+				TaxonomyNode taxNode = init.taxonomyNodes[o];
+				int[] outputs = taxNode.endNodeInputs.get(taskName);
 				if (outputs != null)
-					goalInputs.addAll(outputs);
+					addAll(goalInputs, outputs);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the outputs of the given candidate satisfy both the
+	 * general and the specific condition of the condition node, without
+	 * collecting all of the goal inputs it provides.
+	 *
+	 * @param candidate
+	 * @param init
+	 * @param condNode
+	 * @return true if both conditions are satisfied
+	 */
+	private boolean satisfiesCondition(Node candidate, GraphInitializer init, Node condNode) {
+		String taskName = condNode.getName();
+		boolean general = false;
+		for (int o : candidate.getOutputIds()[0]) {
+			int[] inputs = init.taxonomyNodes[o].condNodeGeneralInputs.get(taskName);
+			if (inputs != null && contains(inputs, condNode.getGeneralConditionId())) {
+				general = true;
+				break;
 			}
 		}
+		if (!general)
+			return false;
+
+		for (int o : candidate.getOutputIds()[1]) {
+			int[] inputs = init.taxonomyNodes[o].condNodeSpecificInputs.get(taskName);
+			if (inputs != null && contains(inputs, condNode.getSpecificConditionId()))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean contains(int[] concepts, int concept) {
+		for (int c : concepts) {
+			if (c == concept)
+				return true;
+		}
+		return false;
+	}
+
+	private static void addAll(BitSet set, int[] concepts) {
+		for (int c : concepts)
+			set.set(c);
+	}
+
+	private static boolean containsAll(BitSet set, int[] concepts) {
+		for (int c : concepts) {
+			if (!set.get(c))
+				return false;
+		}
+		return true;
 	}
 
-	public void addToCandidateList(Node n, Set<String> seenNode, Set<Node> relevant, List<Node> candidateList, GraphInitializer init, boolean isCond, boolean isIfBranch) {
+	public void addToCandidateList(Node n, Set<String> seenNode, Set<Node> relevant, CandidateBag candidateList, GraphInitializer init, boolean isCond, boolean isIfBranch) {
 		seenNode.add(n.getBaseName());
 		List<TaxonomyNode> taxonomyOutputs;
-		if (n.getName().equals("start"))
+		if (n.getKind() == Node.Kind.START)
 			taxonomyOutputs = init.startNode.getTaxonomyOutputs();
 		else if (isCond) {
 			if (isIfBranch) {
@@ -413,11 +533,13 @@ public class GraphSpecies extends Species {
 				taxonomyOutputs = n.getGeneralTaxonomyOutputs();
 		}
 		else
-			taxonomyOutputs = init.serviceMap.get(n.getBaseName()).getTaxonomyOutputs();
+			taxonomyOutputs = init.repositoryNodes[n.getServiceId()].getTaxonomyOutputs();
 
-		for (TaxonomyNode t : taxonomyOutputs) {
+		for (int i = 0; i < taxonomyOutputs.size(); i++) {
 			// Add servicesWithInput from taxonomy node as potential candidates to be connected
-			for (Node current : t.servicesWithInput) {
+			List<Node> services = taxonomyOutputs.get(i).servicesWithInput;
+			for (int j = 0; j < services.size(); j++) {
+				Node current = services.get(j);
 				if (!seenNode.contains(current.getBaseName()) && relevant.contains(current)) {
 					candidateList.add(current);
 					seenNode.add(current.getBaseName());
@@ -426,18 +548,17 @@ public class GraphSpecies extends Species {
 		}
 	}
 
-	private void addToCandidateListFromEdges (Node n, GraphIndividual mergedGraph, Set<String> seenNode, List<Node> candidateList, GraphInitializer init, Map<String, List<Node>> baseToNodesMap) {
+	public void addToCandidateListFromEdges (Node n, Set<String> seenNode, CandidateBag candidateList, Map<Integer, List<Node>> mergedSuccessors) {
 		seenNode.add(n.getBaseName());
 
-		List<Node> originalNodes = baseToNodesMap.get(n.getBaseName());
+		List<Node> successors = mergedSuccessors.get(n.getServiceId());
+		if (successors == null)
+			return;
 
-		for (Node original : originalNodes) {
-			for (Edge e : original.getOutgoingEdgeList()) {
-				Node current = e.getToNode();
-				if (!seenNode.contains(current.getBaseName()) && !current.getName().startsWith("cond") && !current.getName().startsWith("end")) {
-					candidateList.add(current);
-					seenNode.add(current.getBaseName());
-				}
+		for (Node current : successors) {
+			if (!seenNode.contains(current.getBaseName())) {
+				candidateList.add(current);
+				seenNode.add(current.getBaseName());
 			}
 		}
 	}
@@ -146,6 +146,14 @@ public class GraphStatistics extends SimpleShortStatistics {
             state.output.print("" + numNodes + " ", statisticslog);
             state.output.print("" + path + " ", statisticslog);
 
+            // fitness cache hits, misses and evictions so far
+            FitnessCache cache = ((GraphInitializer) state.initializer).fitnessCache;
+            if (cache != null) {
+                state.output.print("" + cache.getHits() + " ", statisticslog);
+                state.output.print("" + cache.getMisses() + " ", statisticslog);
+                state.output.print("" + cache.getEvictions() + " ", statisticslog);
+            }
+
             }
 
         // hook for KozaShortStatistics etc.
@@ -0,0 +1,69 @@
+package ec.graph;
+
+import java.lang.management.ManagementFactory;
+
+import ec.EvolutionState;
+import ec.Evolve;
+import ec.Individual;
+import ec.util.ParameterDatabase;
+
+/**
+ * Measures the memory allocated by the mutation operator. The initial
+ * population is created from the given parameters, then copies of its
+ * individuals are expanded and mutated in batches. Copying and expanding
+ * happen outside the measured region, so the figures reported only cover
+ * the mutation itself.
+ *
+ * Usage: java ec.graph.MutationBenchmark -file graph-evol.params [-p param=value ...]
+ *
+ * @author sawczualex
+ */
+public class MutationBenchmark {
+	private static final int BATCH_SIZE = 256;
+	private static final int WARMUP_BATCHES = 20;
+	private static final int MEASURED_BATCHES = 50;
+
+	public static void main(String[] args) {
+		ParameterDatabase parameters = Evolve.loadParameterDatabase(args);
+		EvolutionState state = Evolve.initialize(parameters, 0);
+		state.startFresh();
+
+		Individual[] population = state.population.subpops[0].individuals;
+		GraphMutationPipeline mutation = new GraphMutationPipeline();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		GraphIndividual[] batch = new GraphIndividual[BATCH_SIZE];
+		long bytes = 0;
+		long nanos = 0;
+		long nodes = 0;
+		for (int b = 0; b < WARMUP_BATCHES + MEASURED_BATCHES; b++) {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				batch[i] = (GraphIndividual) population[state.random[0].nextInt(population.length)].clone();
+				batch[i].expand();
+			}
+
+			long startBytes = threads.getThreadAllocatedBytes(threadId);
+			long startTime = System.nanoTime();
+			for (int i = 0; i < BATCH_SIZE; i++)
+				batch[i] = mutation.mutate(batch[i], state, 0);
+			long time = System.nanoTime() - startTime;
+			long allocated = threads.getThreadAllocatedBytes(threadId) - startBytes;
+
+			if (b >= WARMUP_BATCHES) {
+				bytes += allocated;
+				nanos += time;
+				for (GraphIndividual g : batch)
+					nodes += g.nodeMap.size();
+			}
+		}
+
+		long mutations = (long) BATCH_SIZE * MEASURED_BATCHES;
+		System.out.println(String.format("Mutations: %d", mutations));
+		System.out.println(String.format("Bytes allocated per mutation: %.1f", (double) bytes / mutations));
+		System.out.println(String.format("Allocation rate: %.1f MB/s", bytes / (nanos / 1e9) / (1024 * 1024)));
+		System.out.println(String.format("Mutations per second: %.1f", mutations / (nanos / 1e9)));
+		System.out.println(String.format("Average nodes per mutated graph: %.1f", (double) nodes / mutations));
+		Evolve.cleanup(state);
+	}
+}
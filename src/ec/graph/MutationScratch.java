@@ -0,0 +1,48 @@
+package ec.graph;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Working collections of the mutation operator, kept for each breeding
+ * thread and cleared before every mutation, so that mutating an individual
+ * does not allocate them again.
+ *
+ * @author sawczualex
+ */
+public class MutationScratch {
+	public final Set<Node> nodesToRemove = new HashSet<Node>();
+	public final Set<Edge> edgesToRemove = new HashSet<Edge>();
+	public final Set<Node> reachesGoal = new HashSet<Node>();
+	public final ArrayDeque<Node> queue = new ArrayDeque<Node>();
+	public final List<Node> mutationPoints = new ArrayList<Node>();
+	public final Set<String> seenNodes = new HashSet<String>();
+	public final Map<String, Node> allowedAncestors = new HashMap<String, Node>();
+	public final Map<String, Edge> connections = new HashMap<String, Edge>();
+	public final BitSet currentGoalInputs;
+	public final CandidateBag candidates;
+
+	public MutationScratch(GraphInitializer init) {
+		currentGoalInputs = new BitSet(init.concepts.size());
+		candidates = new CandidateBag(init);
+	}
+
+	public void clear() {
+		nodesToRemove.clear();
+		edgesToRemove.clear();
+		reachesGoal.clear();
+		queue.clear();
+		mutationPoints.clear();
+		seenNodes.clear();
+		allowedAncestors.clear();
+		connections.clear();
+		currentGoalInputs.clear();
+		candidates.clear();
+	}
+}
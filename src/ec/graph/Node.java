@@ -7,6 +7,8 @@ import java.util.Set;
 import ec.graph.taskNodes.TaskNode;
 
 public class Node implements Cloneable {
+	public enum Kind {START, SERVICE, CONDITION, END}
+
 	private List<Edge> incomingEdgeList = new ArrayList<Edge>();
 	private List<Edge> outgoingEdgeList = new ArrayList<Edge>();
 	private List<TaxonomyNode> taxonomyOutputs = new ArrayList<TaxonomyNode>();
@@ -22,6 +24,14 @@ public class Node implements Cloneable {
 	private TaskNode taskNode;
 	private String generalCondition;
 	private String specificCondition;
+	private int[] inputIds;
+	private int[][] outputIds;
+	private int generalConditionId = -1;
+	private int specificConditionId = -1;
+	private Kind kind = Kind.SERVICE;
+	private int serviceId = -1;
+	private int sectionId = -1;
+	private double finishTime = Double.NaN;
 
 	public Node(String name, String baseName, double[] qos, Set<String> inputs, List<List<String>> outputPossibilities, List<Float> probabilities) {
 		this.name = name;
@@ -51,6 +61,91 @@ public class Node implements Cloneable {
 		return specificCondition;
 	}
 
+	/**
+	 * Translates the input, output and condition names of this node into
+	 * concept IDs from the given dictionary.
+	 *
+	 * @param concepts
+	 */
+	public void resolveConcepts(ConceptDictionary concepts) {
+		if (inputs != null)
+			inputIds = concepts.getIds(inputs);
+		else
+			inputIds = new int[0];
+
+		if (outputPossibilities != null) {
+			outputIds = new int[outputPossibilities.size()][];
+			for (int i = 0; i < outputIds.length; i++)
+				outputIds[i] = concepts.getIds(outputPossibilities.get(i));
+		}
+		else
+			outputIds = new int[0][];
+
+		if (generalCondition != null)
+			generalConditionId = concepts.getId(generalCondition);
+		if (specificCondition != null)
+			specificConditionId = concepts.getId(specificCondition);
+	}
+
+	public int[] getInputIds() {
+		return inputIds;
+	}
+
+	public int[][] getOutputIds() {
+		return outputIds;
+	}
+
+	public int getGeneralConditionId() {
+		return generalConditionId;
+	}
+
+	public int getSpecificConditionId() {
+		return specificConditionId;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public void setKind(Kind kind) {
+		this.kind = kind;
+	}
+
+	/**
+	 * @return index of this node in GraphInitializer.repositoryNodes
+	 */
+	public int getServiceId() {
+		return serviceId;
+	}
+
+	public void setServiceId(int serviceId) {
+		this.serviceId = serviceId;
+	}
+
+	/**
+	 * @return index in GraphInitializer.suffixList of the task section this
+	 * node belongs to, or -1 for the start node and unconnected services
+	 */
+	public int getSectionId() {
+		return sectionId;
+	}
+
+	public void setSectionId(int sectionId) {
+		this.sectionId = sectionId;
+	}
+
+	/**
+	 * @return latest time at which this node finishes executing, as found by
+	 * the last evaluation of its graph, or NaN if not yet known
+	 */
+	public double getFinishTime() {
+		return finishTime;
+	}
+
+	public void setFinishTime(double finishTime) {
+		this.finishTime = finishTime;
+	}
+
 	public List<Edge> getIncomingEdgeList() {
 		return incomingEdgeList;
 	}
@@ -93,16 +188,24 @@ public class Node implements Cloneable {
 
 	public Node clone() {
 		// If it is not a conditional node
+		Node n;
 		if (generalCondition == null)
-			return new Node(name, baseName, qos, inputs, outputPossibilities, probabilities);
+			n = new Node(name, baseName, qos, inputs, outputPossibilities, probabilities);
 		// Otherwise, it is a conditional node
 		else {
-			Node n = new Node(name, baseName, qos, generalCondition, specificCondition, outputPossibilities, probabilities, taskNode);
+			n = new Node(name, baseName, qos, generalCondition, specificCondition, outputPossibilities, probabilities, taskNode);
 			n.taxonomyOutputs = taxonomyOutputs;
 			n.generalTaxonomyOutputs = generalTaxonomyOutputs;
 			n.specificTaxonomyOutputs = specificTaxonomyOutputs;
-			return n;
+			n.generalConditionId = generalConditionId;
+			n.specificConditionId = specificConditionId;
 		}
+		n.inputIds = inputIds;
+		n.outputIds = outputIds;
+		n.kind = kind;
+		n.serviceId = serviceId;
+		n.sectionId = sectionId;
+		return n;
 	}
 
 	public List<TaxonomyNode> getTaxonomyOutputs() {
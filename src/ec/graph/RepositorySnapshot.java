@@ -0,0 +1,389 @@
+package ec.graph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import ec.graph.taskNodes.ConditionNode;
+import ec.graph.taskNodes.InputNode;
+import ec.graph.taskNodes.OutputNode;
+import ec.graph.taskNodes.TaskNode;
+
+/**
+ * Compact binary image of a parsed repository: the services, the task
+ * tree, the taxonomy and the set of relevant services. The image records
+ * the checksums of the XML files it was built from, so that it is only
+ * used while those files remain unchanged. Images are read through a
+ * memory-mapped buffer.
+ *
+ * @author sawczualex
+ */
+public class RepositorySnapshot {
+	private static final int MAGIC = 0x47455253; // "GERS"
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte INPUT_TASK = 0;
+	private static final byte CONDITION_TASK = 1;
+	private static final byte OUTPUT_TASK = 2;
+
+	private static final byte FLAG_RUNNING_OWLS = 1;
+	private static final byte FLAG_FIND_CONCEPTS = 2;
+
+	private final File file;
+	private final long[] checksums;
+	private final byte flags;
+
+	/**
+	 * Creates a snapshot handle for the given image file, keyed on the
+	 * current contents of the source files and on the loading settings.
+	 *
+	 * @param file - the image file
+	 * @param sources - services, task and taxonomy files
+	 * @param runningOwls
+	 * @param findConcepts
+	 */
+	public RepositorySnapshot(File file, String[] sources, boolean runningOwls, boolean findConcepts) throws IOException {
+		this.file = file;
+		checksums = new long[sources.length];
+		for (int i = 0; i < sources.length; i++)
+			checksums[i] = checksum(new File(sources[i]));
+		byte f = 0;
+		if (runningOwls)
+			f |= FLAG_RUNNING_OWLS;
+		if (findConcepts)
+			f |= FLAG_FIND_CONCEPTS;
+		flags = f;
+	}
+
+	/**
+	 * Loads the image into the initializer, filling in its service map,
+	 * taxonomy map and task tree.
+	 *
+	 * @param init
+	 * @return the names of the relevant services, or null if there is no
+	 *         image, it was built from different source files, or it is
+	 *         truncated or corrupt
+	 */
+	public Set<String> load(GraphInitializer init) throws IOException {
+		if (!file.isFile())
+			return null;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (in.getInt() != MAGIC || in.getInt() != VERSION)
+				return null;
+			for (long c : checksums) {
+				if (in.getLong() != c)
+					return null;
+			}
+			if (in.get() != flags)
+				return null;
+
+			// String table
+			String[] strings = new String[in.getInt()];
+			for (int i = 0; i < strings.length; i++) {
+				byte[] bytes = new byte[in.getInt()];
+				in.get(bytes);
+				strings[i] = new String(bytes, UTF8);
+			}
+
+			// Taxonomy
+			TaxonomyNode[] taxonomy = new TaxonomyNode[in.getInt()];
+			for (int i = 0; i < taxonomy.length; i++) {
+				taxonomy[i] = new TaxonomyNode(strings[in.getInt()]);
+				init.taxonomyMap.put(taxonomy[i].value, taxonomy[i]);
+			}
+			for (TaxonomyNode n : taxonomy) {
+				int numParents = in.getInt();
+				for (int i = 0; i < numParents; i++)
+					n.parents.add(taxonomy[in.getInt()]);
+				int numChildren = in.getInt();
+				for (int i = 0; i < numChildren; i++)
+					n.children.add(taxonomy[in.getInt()]);
+			}
+
+			// Task tree
+			init.taskTree = readTask(in, strings, null, false);
+
+			// Services
+			Node[] services = new Node[in.getInt()];
+			for (int i = 0; i < services.length; i++) {
+				String name = strings[in.getInt()];
+				double[] qos = new double[4];
+				for (int j = 0; j < qos.length; j++)
+					qos[j] = in.getDouble();
+
+				Set<String> inputs = new HashSet<String>();
+				int numInputs = in.getInt();
+				for (int j = 0; j < numInputs; j++)
+					inputs.add(strings[in.getInt()]);
+
+				List<List<String>> outputPossibilities = new ArrayList<List<String>>();
+				List<Float> probabilities = new ArrayList<Float>();
+				int numPossibilities = in.getInt();
+				for (int j = 0; j < numPossibilities; j++) {
+					probabilities.add(in.getFloat());
+					List<String> outputs = new ArrayList<String>();
+					int numOutputs = in.getInt();
+					for (int k = 0; k < numOutputs; k++)
+						outputs.add(strings[in.getInt()]);
+					outputPossibilities.add(outputs);
+				}
+
+				services[i] = new Node(name, name, qos, inputs, outputPossibilities, probabilities);
+				init.serviceMap.put(name, services[i]);
+			}
+
+			// Relevant services
+			Set<String> relevant = new HashSet<String>();
+			int numRelevant = in.getInt();
+			for (int i = 0; i < numRelevant; i++)
+				relevant.add(services[in.getInt()].getName());
+			return relevant;
+		}
+		// A truncated or corrupt image is treated like a missing one
+		catch (BufferUnderflowException e) {
+			init.taskTree = null;
+			return null;
+		}
+		catch (IndexOutOfBoundsException e) {
+			init.taskTree = null;
+			return null;
+		}
+		catch (NegativeArraySizeException e) {
+			init.taskTree = null;
+			return null;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes an image of the initializer's services, taxonomy and task
+	 * tree, together with the given relevant services. The image is written
+	 * to a temporary file first so that concurrent runs never observe a
+	 * partially written snapshot.
+	 *
+	 * @param init
+	 * @param relevant
+	 */
+	public void write(GraphInitializer init, Set<Node> relevant) throws IOException {
+		Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		List<String> strings = new ArrayList<String>();
+
+		List<TaxonomyNode> taxonomy = new ArrayList<TaxonomyNode>(init.taxonomyMap.values());
+		Map<TaxonomyNode, Integer> taxonomyIds = new HashMap<TaxonomyNode, Integer>();
+		for (TaxonomyNode n : taxonomy) {
+			taxonomyIds.put(n, taxonomyIds.size());
+			intern(n.value, stringIds, strings);
+		}
+		List<Node> services = new ArrayList<Node>(init.serviceMap.values());
+		Map<String, Integer> serviceIds = new HashMap<String, Integer>();
+		for (Node s : services) {
+			serviceIds.put(s.getName(), serviceIds.size());
+			intern(s.getName(), stringIds, strings);
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (long c : checksums)
+				out.writeLong(c);
+			out.writeByte(flags);
+
+			// Task and service values that are missing from the taxonomy still need an entry
+			internTask(init.taskTree, stringIds, strings);
+			for (Node s : services) {
+				for (String i : s.getInputs())
+					intern(i, stringIds, strings);
+				for (List<String> outputs : s.getOutputPossibilities()) {
+					for (String o : outputs)
+						intern(o, stringIds, strings);
+				}
+			}
+
+			out.writeInt(strings.size());
+			for (String s : strings) {
+				byte[] bytes = s.getBytes(UTF8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			out.writeInt(taxonomy.size());
+			for (TaxonomyNode n : taxonomy)
+				out.writeInt(stringIds.get(n.value));
+			for (TaxonomyNode n : taxonomy) {
+				out.writeInt(n.parents.size());
+				for (TaxonomyNode p : n.parents)
+					out.writeInt(taxonomyIds.get(p));
+				out.writeInt(n.children.size());
+				for (TaxonomyNode c : n.children)
+					out.writeInt(taxonomyIds.get(c));
+			}
+
+			writeTask(out, init.taskTree, stringIds);
+
+			out.writeInt(services.size());
+			for (Node s : services) {
+				out.writeInt(stringIds.get(s.getName()));
+				for (double q : s.getQos())
+					out.writeDouble(q);
+				out.writeInt(s.getInputs().size());
+				for (String i : s.getInputs())
+					out.writeInt(stringIds.get(i));
+				out.writeInt(s.getOutputPossibilities().size());
+				for (int i = 0; i < s.getOutputPossibilities().size(); i++) {
+					List<String> outputs = s.getOutputPossibilities().get(i);
+					out.writeFloat(s.getProbabilities().get(i));
+					out.writeInt(outputs.size());
+					for (String o : outputs)
+						out.writeInt(stringIds.get(o));
+				}
+			}
+
+			out.writeInt(relevant.size());
+			for (Node s : relevant)
+				out.writeInt(serviceIds.get(s.getName()));
+		}
+		finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Could not replace snapshot " + file);
+		}
+	}
+
+	private TaskNode readTask(MappedByteBuffer in, String[] strings, TaskNode parent, boolean isGeneral) {
+		byte type = in.get();
+		TaskNode node;
+		if (type == INPUT_TASK) {
+			InputNode inputNode = new InputNode();
+			int numInputs = in.getInt();
+			for (int i = 0; i < numInputs; i++)
+				inputNode.inputs.add(strings[in.getInt()]);
+			inputNode.parent = parent;
+			node = inputNode;
+			readTask(in, strings, node, false);
+		}
+		else if (type == CONDITION_TASK) {
+			ConditionNode cond = new ConditionNode();
+			cond.general = readString(in, strings);
+			cond.specific = readString(in, strings);
+			cond.parent = parent;
+			node = cond;
+			readTask(in, strings, node, false);
+			readTask(in, strings, node, true);
+		}
+		else {
+			OutputNode outNode = new OutputNode();
+			int numOutputs = in.getInt();
+			for (int i = 0; i < numOutputs; i++)
+				outNode.outputs.add(strings[in.getInt()]);
+			outNode.parent = parent;
+			node = outNode;
+		}
+
+		if (parent != null)
+			parent.addChild(node, isGeneral);
+		return node;
+	}
+
+	private String readString(MappedByteBuffer in, String[] strings) {
+		int id = in.getInt();
+		return id < 0 ? null : strings[id];
+	}
+
+	private void writeTask(DataOutputStream out, TaskNode node, Map<String, Integer> stringIds) throws IOException {
+		if (node instanceof InputNode) {
+			InputNode inputNode = (InputNode) node;
+			out.writeByte(INPUT_TASK);
+			out.writeInt(inputNode.inputs.size());
+			for (String i : inputNode.inputs)
+				out.writeInt(stringIds.get(i));
+			writeTask(out, inputNode.child, stringIds);
+		}
+		else if (node instanceof ConditionNode) {
+			ConditionNode cond = (ConditionNode) node;
+			out.writeByte(CONDITION_TASK);
+			out.writeInt(cond.general == null ? -1 : stringIds.get(cond.general));
+			out.writeInt(cond.specific == null ? -1 : stringIds.get(cond.specific));
+			// The specific child is added first, as when parsing the task file
+			writeTask(out, cond.specificChild, stringIds);
+			writeTask(out, cond.generalChild, stringIds);
+		}
+		else {
+			OutputNode outNode = (OutputNode) node;
+			out.writeByte(OUTPUT_TASK);
+			out.writeInt(outNode.outputs.size());
+			for (String o : outNode.outputs)
+				out.writeInt(stringIds.get(o));
+		}
+	}
+
+	private void internTask(TaskNode node, Map<String, Integer> stringIds, List<String> strings) {
+		if (node instanceof InputNode) {
+			for (String i : ((InputNode) node).inputs)
+				intern(i, stringIds, strings);
+		}
+		else if (node instanceof ConditionNode) {
+			ConditionNode cond = (ConditionNode) node;
+			if (cond.general != null)
+				intern(cond.general, stringIds, strings);
+			if (cond.specific != null)
+				intern(cond.specific, stringIds, strings);
+		}
+		else if (node instanceof OutputNode) {
+			for (String o : ((OutputNode) node).outputs)
+				intern(o, stringIds, strings);
+		}
+
+		if (node.getChildren() != null) {
+			for (TaskNode child : node.getChildren())
+				internTask(child, stringIds, strings);
+		}
+	}
+
+	private void intern(String value, Map<String, Integer> stringIds, List<String> strings) {
+		if (!stringIds.containsKey(value)) {
+			stringIds.put(value, strings.size());
+			strings.add(value);
+		}
+	}
+
+	private static long checksum(File source) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(source, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			CRC32 crc = new CRC32();
+			crc.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			return crc.getValue() ^ (channel.size() << 32);
+		}
+		finally {
+			raf.close();
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package ec.graph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -14,12 +16,13 @@ import java.util.Set;
  * @author sawczualex
  */
 public class TaxonomyNode {
-	public Map<String, Set<String>> endNodeInputs = new HashMap<String, Set<String>>();
-	public Map<String, Set<String>> condNodeGeneralInputs = new HashMap<String, Set<String>>();
-	public Map<String, Set<String>> condNodeSpecificInputs = new HashMap<String, Set<String>>();
+	public Map<String, int[]> endNodeInputs = new HashMap<String, int[]>();
+	public Map<String, int[]> condNodeGeneralInputs = new HashMap<String, int[]>();
+	public Map<String, int[]> condNodeSpecificInputs = new HashMap<String, int[]>();
 	public List<Node> servicesWithOutput = new ArrayList<Node>();
 	public List<Node> servicesWithInput = new ArrayList<Node>();
 	public String value;
+	public int id = -1;
 	public List<TaxonomyNode> parents = new ArrayList<TaxonomyNode>();
 	public List<TaxonomyNode> children = new ArrayList<TaxonomyNode>();
 
@@ -48,6 +51,44 @@ public class TaxonomyNode {
         }
     }
 
+	/**
+	 * Records that the given goal input concept is satisfied by this node,
+	 * in the map of inputs for the named goal.
+	 *
+	 * @param goalInputs - one of the goal input maps of this node
+	 * @param goalName
+	 * @param concept - concept ID
+	 */
+	public static void addGoalInput(Map<String, int[]> goalInputs, String goalName, int concept) {
+		int[] inputs = goalInputs.get(goalName);
+		if (inputs == null) {
+			goalInputs.put(goalName, new int[] {concept});
+		}
+		else {
+			for (int i : inputs) {
+				if (i == concept)
+					return;
+			}
+			inputs = Arrays.copyOf(inputs, inputs.length + 1);
+			inputs[inputs.length - 1] = concept;
+			goalInputs.put(goalName, inputs);
+		}
+	}
+
+	/**
+	 * Replaces the collections of this node with read-only views, once the
+	 * taxonomy has been fully built.
+	 */
+	public void freeze() {
+		endNodeInputs = Collections.unmodifiableMap(endNodeInputs);
+		condNodeGeneralInputs = Collections.unmodifiableMap(condNodeGeneralInputs);
+		condNodeSpecificInputs = Collections.unmodifiableMap(condNodeSpecificInputs);
+		servicesWithOutput = Collections.unmodifiableList(servicesWithOutput);
+		servicesWithInput = Collections.unmodifiableList(servicesWithInput);
+		parents = Collections.unmodifiableList(parents);
+		children = Collections.unmodifiableList(children);
+	}
+
     @Override
     public boolean equals(Object other) {
         if (other instanceof TaxonomyNode) {